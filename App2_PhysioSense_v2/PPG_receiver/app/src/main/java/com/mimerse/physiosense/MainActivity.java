@@ -27,14 +27,27 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.mimerse.physiosense.dwt.DWT;
 import com.mimerse.physiosense.dwt.StringUtils;
 import com.mimerse.physiosense.services.WearListenerService;       // Android Wear OS Smartwatch
 import com.mimerse.physiosense.services.SAPConsumerService;        // Tizen OS Samsung Smartwatches
 import com.mimerse.physiosense.services.MuseListenerService;       // EEG Muse
 import com.mimerse.physiosense.services.myo.MYOListenerService;    // EMG Myo
-import com.mimerse.physiosense.signalproc.SignalAnalyzer;
+import com.mimerse.physiosense.signalproc.AsyncLogWriter;
+import com.mimerse.physiosense.signalproc.HrvEngine;
+import com.mimerse.physiosense.signalproc.PeakSink;
+import com.mimerse.physiosense.signalproc.PeakTrace;
+import com.mimerse.physiosense.signalproc.PeakTrackingState;
+import com.mimerse.physiosense.signalproc.Precision;
+import com.mimerse.physiosense.signalproc.ProcessingWorker;
+import com.mimerse.physiosense.signalproc.SampleBlock;
+import com.mimerse.physiosense.signalproc.SampleLineParser;
+import com.mimerse.physiosense.signalproc.SampleRingBuffer;
 import com.mimerse.physiosense.signalproc.SignalProcessingResponse;
 import com.mimerse.physiosense.signalproc.SignalProcessingThread;
+import com.mimerse.physiosense.signalproc.SignalQualityGate;
+import com.mimerse.physiosense.signalproc.StreamingHrvEngine;
+import com.mimerse.physiosense.signalproc.WaveletBaselineFilter;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -51,10 +64,20 @@ import java.util.DoubleSummaryStatistics;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class MainActivity extends AppCompatActivity {
     public static final String TAG = "PhysioSense";
     public static final String MAIN_FOLDER_NAME = "PhysioSense_Logs";
+    // Processing settings of the launch intent, e.g.
+    // adb shell am start -n com.mimerse.physiosense/.MainActivity --es com.mimerse.physiosense.extra.PROCESSING_PRECISION SINGLE
+    public static final String EXTRA_PROCESSING_PRECISION = "com.mimerse.physiosense.extra.PROCESSING_PRECISION";
+    // PeakTrace.OFF, CHUNK or PEAK, as an int
+    public static final String EXTRA_TRACE_LEVEL = "com.mimerse.physiosense.extra.TRACE_LEVEL";
+    // true for the low latency streaming mode, false for the block mode
+    public static final String EXTRA_STREAMING_MODE = "com.mimerse.physiosense.extra.STREAMING_MODE";
 
     public enum Device{
         NONE,
@@ -93,33 +116,142 @@ public class MainActivity extends AppCompatActivity {
 
     // LOGGERS
     private static boolean firstLogger = true;
-    private static boolean areLoggersReady = false;
+    // Set from the UI thread, read by the receiving one before every line
+    private static volatile boolean areLoggersReady = false;
     private static String appFolderPath = "";
     private static String signalLoggerFilename, processedSignalLoggerFilename, peaksAndHRVLoggerFilename;
     private static File signalLogger, processedSignalLogger, peaksAndHRVLogger, debugLogger;
     private static BufferedWriter writerSignal, writerProcSgn, writerPeaksAndHRV, writerDebug;
+    // Writes the files of the session in the background, the writers above only queue their lines for it
+    private static AsyncLogWriter logWriter = null;
+    // Runs the resets and the end of the session one after the other, off the UI thread, as they wait for the
+    // processing worker and the log writer
+    private static final ExecutorService sessionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SessionControl");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // Set by the UI thread when it hands a reset to sessionExecutor, cleared once the new loggers are ready
+    private static volatile boolean loggersResetPending = false;
 
     // UDP Setup
     final static int UDP_SERVER_PORT = 1111;
     private static DatagramSocket udpSocket = null;
     private static InetAddress serverAddr = null;
-    private static DatagramPacket udpPacket = null;
 
     // SIGNAL ANALYZER
     private static AsyncTask SignalProcessor;
-    private static int DATA_BLOCK_TO_PROCESS = 1024; // Power of 2 to facilitate DWT calculation
-    private static int WINDOW_OVERLAP = 112;         //Allow to process only the 800 samples in the middle using 1024 samples
+    private static int DATA_BLOCK_TO_PROCESS = 1024; // Power of 2 to facilitate DWT calculation, any length with the undecimated baseline filter
+    private static int WINDOW_OVERLAP = 12;          //Process the 1000 samples in the middle of 1024 samples (112 with the periodic boundary and no peak tracking)
     private static double timeStampPeak = 0.0, timeStampLastPeak = 0.0, calculatedHRV = 0.0, lastValidHRV = 0.0;
     private static final int HRV_LOWER_LIMIT_MS = 200, HRV_UPPER_LIMIT_MS = 1400; // HRV values outside the range will be dismissed and set to the previous valid value
 
-    // Store timestamps as text to avoid rounding the numbers when trying to map the indexes of the peaks in the original signal again.
-    private static List<String> timeSet = new ArrayList<String>();
-    private static List<Double> valueSet = new ArrayList<Double>();
-    private static double[] signalValues = new double[2];
+    // Blocks that can wait for the processing worker, the one being processed not included
+    private static final int PROCESSING_QUEUE_SIZE = 4;
+    // Samples waiting to be processed, with the overlap of the previous block. The timestamps in microseconds are parsed
+    // as long so they map the indexes of the peaks in the original signal again without rounding.
+    // The blocks are processed in place, so the ring holds the queued blocks, the one being processed and the next one.
+    private static SampleRingBuffer sampleBuffer = new SampleRingBuffer(DATA_BLOCK_TO_PROCESS*(PROCESSING_QUEUE_SIZE + 2), PROCESSING_QUEUE_SIZE + 2);
+    // Reads the tag, timestamp and value of every line without splitting it, and counts the malformed lines
+    private static final SampleLineParser lineParser = new SampleLineParser();
+    // SINGLE runs the whole processing pipeline in float arrays. Set from the UI thread, read by the receiving one
+    private static volatile Precision processingPrecision = Precision.DOUBLE;
+    // Level of the peak detector trace, PeakTrace.OFF, CHUNK or PEAK. Set from the UI thread, handed to the worker with the blocks
+    private static volatile int traceLevel = PeakTrace.OFF;
+    // The symmetric boundary and the peak tracking carried between blocks keep the block edges usable with a small overlap.
+    // Transform.UNDECIMATED accepts any DATA_BLOCK_TO_PROCESS, e.g. 624 = 2*WINDOW_OVERLAP + 3 chunks of 4 seconds.
+    private static WaveletBaselineFilter baselineFilter = new WaveletBaselineFilter(50, 0.78125, WaveletBaselineFilter.Transform.DECIMATED, DWT.Boundary.symmetric);
+    private static PeakTrackingState peakTrackingState = new PeakTrackingState();
+    // Owns the buffers of the double precision processing, built once for the whole session
+    private static HrvEngine hrvEngine = new HrvEngine(DATA_BLOCK_TO_PROCESS, 50, WINDOW_OVERLAP, baselineFilter, peakTrackingState,
+            HrvEngine.DEFAULT_PERIOD_TOLERANCE, HrvEngine.DEFAULT_PEAK_NEIGHBORHOOD, HrvEngine.DEFAULT_PEAK_WINDOW_SIZE);
+    // The same processing in float arrays, for Precision.SINGLE. It converts the blocks into its own buffer and
+    // shares the peak tracking, so the peaks follow on when the precision changes
+    private static HrvEngine singlePrecisionHrvEngine = new HrvEngine(DATA_BLOCK_TO_PROCESS, 50, WINDOW_OVERLAP,
+            new WaveletBaselineFilter(50, 0.78125, WaveletBaselineFilter.Transform.DECIMATED, DWT.Boundary.symmetric), peakTrackingState,
+            HrvEngine.DEFAULT_PERIOD_TOLERANCE, HrvEngine.DEFAULT_PEAK_NEIGHBORHOOD, HrvEngine.DEFAULT_PEAK_WINDOW_SIZE,
+            DATA_BLOCK_TO_PROCESS - 2*WINDOW_OVERLAP, Precision.SINGLE);
+    // Low latency mode: peaks of a window of 10 seconds every second instead of every 1000 samples, see StreamingHrvEngine.
+    // The undecimated filter takes the window without zero padding.
+    // Set from the UI thread, the receiving thread cuts the blocks for the mode it read last and drops its samples on a change.
+    private static volatile boolean streamingMode = false;
+    private static boolean bufferedStreamingMode = false;
+    private static StreamingHrvEngine streamingHrvEngine = new StreamingHrvEngine(50,
+            new WaveletBaselineFilter(50, 0.78125, WaveletBaselineFilter.Transform.UNDECIMATED, DWT.Boundary.symmetric));
+    // Samples of the block being processed, DATA_BLOCK_TO_PROCESS or the streaming window
+    private static int processedBlockSize = DATA_BLOCK_TO_PROCESS;
+    static {
+        // Chunks of a loose or off-wrist watch (flat, clipped, without pulse) are skipped before the wavelet filter
+        hrvEngine.setQualityGate(new SignalQualityGate(50));
+        singlePrecisionHrvEngine.setQualityGate(new SignalQualityGate(50));
+        streamingHrvEngine.getEngine().setQualityGate(new SignalQualityGate(50));
+    }
+    private static final PeakSink peakSink = new PeakSink() {
+        @Override
+        public void onPeak(int index, long timestampMicros, double amplitude) {
+            ProcessPeak(index, timestampMicros, amplitude);
+        }
+    };
 
     private static int incomingDataCounter = 0;
     private static boolean firstProcessingRound = true;
 
+    // A block of samples handed to the processing worker, with the settings it was cut with
+    private static class ProcessingJob {
+        // Held until the processing is done
+        SampleBlock block;
+        boolean streaming;
+        Precision precision;
+        int traceLevel;
+        // The samples do not follow the previous block, e.g. after a change of mode
+        boolean newStream;
+        // Consecutive blocks have consecutive numbers, a gap means blocks were dropped
+        long sequence;
+        // Lines received up to the end of the block
+        int lineCount;
+    }
+    // One per block of the ring, reused with it
+    private static final ProcessingJob[] processingJobs = new ProcessingJob[PROCESSING_QUEUE_SIZE + 2];
+    static {
+        for(int i=0; i<processingJobs.length; i++)
+            processingJobs[i] = new ProcessingJob();
+    }
+    // Receiving thread: numbering of the blocks, and start of a new stream after the samples were dropped
+    private static long nextBlockSequence = 0;
+    private static boolean nextBlockStartsStream = true;
+    // Receiving thread: samples dropped in a row because the ring was full of held blocks, logged when the drops start and end
+    private static long droppedSamples = 0;
+    // Set from the UI thread with new loggers, the receiving thread empties the ring and restarts its counters on the next line,
+    // as only that thread may add, discard and acquire the samples of the ring
+    private static volatile boolean resetRequested = false;
+    // Worker thread: last block processed and its line count, for the line numbers of the peaks
+    private static long lastProcessedSequence = -1;
+    private static int processedLineCount = 0;
+    // The processing runs off the receiving thread, which only parses and cuts the blocks. The blocks are 20 seconds
+    // (1 second in streaming mode) apart, so the queue only fills when the processing stalls, and then the oldest
+    // block is dropped to keep the peaks up to date
+    private static final ProcessingWorker<ProcessingJob> processingWorker = new ProcessingWorker<ProcessingJob>("SignalProcessing", PROCESSING_QUEUE_SIZE,
+            ProcessingWorker.FullPolicy.DROP_OLDEST, new ProcessingWorker.Processor<ProcessingJob>() {
+                @Override
+                public void process(ProcessingJob job) {
+                    try {
+                        ProcessBlock(job);
+                    } finally {
+                        // The samples go back to the ring
+                        job.block.release();
+                    }
+                }
+
+                @Override
+                public void onDropped(ProcessingJob job) {
+                    Log.w(TAG, "Block " + job.sequence + " dropped, " + processingWorker);
+                    job.block.release();
+                }
+            });
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -185,6 +317,43 @@ public class MainActivity extends AppCompatActivity {
         // Initial state of GUI
         layTizen.setVisibility(View.INVISIBLE);
         UpdateDetailedLayoutsView(Device.TIZEN);
+
+        ApplyProcessingSettings(getIntent());
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        ApplyProcessingSettings(intent);
+    }
+
+    // Applies the processing settings given as extras of the intent, the others keep their value
+    private static void ApplyProcessingSettings(Intent intent)
+    {
+        if(intent == null)
+            return;
+        String precision = intent.getStringExtra(EXTRA_PROCESSING_PRECISION);
+        if(precision != null)
+        {
+            try {
+                SetProcessingPrecision(Precision.valueOf(precision));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown processing precision " + precision + ", SINGLE or DOUBLE expected");
+            }
+        }
+        if(intent.hasExtra(EXTRA_TRACE_LEVEL))
+        {
+            int level = intent.getIntExtra(EXTRA_TRACE_LEVEL, PeakTrace.OFF);
+            if(level >= PeakTrace.OFF && level <= PeakTrace.PEAK)
+                SetTraceLevel(level);
+            else
+                Log.w(TAG, "Unknown trace level " + level + ", " + PeakTrace.OFF + " to " + PeakTrace.PEAK + " expected");
+        }
+        if(intent.hasExtra(EXTRA_STREAMING_MODE))
+            SetStreamingMode(intent.getBooleanExtra(EXTRA_STREAMING_MODE, false));
+        Log.i(TAG, "Signal processing precision " + processingPrecision + ", trace level " + traceLevel
+                + ", streaming mode " + streamingMode);
     }
 
     @Override
@@ -210,27 +379,15 @@ public class MainActivity extends AppCompatActivity {
             udpSocket.close();
         }
 
-        // SIGNAL PROCESSOR
-        // Cancel signal processor
-        SignalProcessor.cancel(true);
-
-        // FILE MANAGEMENT
+        // SIGNAL PROCESSOR AND FILE MANAGEMENT
+        // Stopped on the session thread, after a reset that may still be running
         areLoggersReady = false;
-        try {
-            // Log was running. Stop it and create new ones.
-            if(writerSignal != null)
-                writerSignal.close();
-            if(writerProcSgn != null)
-                writerProcSgn.close();
-            if(writerPeaksAndHRV != null)
-                writerPeaksAndHRV.close();
-            if(writerDebug != null)
-                writerDebug.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
+        sessionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                StopSession();
+            }
+        });
 
         super.onDestroy();
     }
@@ -320,7 +477,8 @@ public class MainActivity extends AppCompatActivity {
 
     private static void SendThroughUDP(String datagram) {
         try {
-            udpPacket = new DatagramPacket(datagram.getBytes(), datagram.length(), serverAddr, UDP_SERVER_PORT);
+            // Sent from the receiving and the processing threads, so the packet is not shared
+            DatagramPacket udpPacket = new DatagramPacket(datagram.getBytes(), datagram.length(), serverAddr, UDP_SERVER_PORT);
             udpSocket.send(udpPacket);
 
             Log.d(TAG, datagram + " via " + UDP_SERVER_PORT + " to: " + serverAddr);
@@ -339,10 +497,20 @@ public class MainActivity extends AppCompatActivity {
 
     // Signal Processing
     private static void AnalyzeMessage(String line) {
+        if(resetRequested)
+        {
+            // New session: the held blocks of the previous one stay readable until the worker releases them
+            resetRequested = false;
+            sampleBuffer.clear();
+            incomingDataCounter = 0;
+            lineParser.resetMalformedLines();
+            droppedSamples = 0;
+            nextBlockStartsStream = true;
+        }
         incomingDataCounter++;
 
-        String[] lineValues = line.split(",");
-        if (lineValues.length != 4 || (lineValues[0].compareTo("PPG") != 0 && lineValues[0].compareTo("HR") != 0)) {
+        int lineType = lineParser.parse(line);
+        if (lineType == SampleLineParser.INVALID) {
             WriteLog("Line skipped: " + incomingDataCounter + "\t" + line + "\t||NOT PROCESSED!");
             return;
         }
@@ -351,41 +519,75 @@ public class MainActivity extends AppCompatActivity {
         try {
             writerSignal.write(line);
             //writerSignal.newLine(); // Not needed, the line comes with a "\n" at the end
-            writerSignal.flush();
+            // Flushed to the log writer once per block, see below, one record per line would cost more than the line
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         // If it is Heart Rate instead of PPG info, don't process anything and continue.
-        if (lineValues[0].compareTo("HR") == 0)
+        if (lineType == SampleLineParser.HR)
             return;
 
         //// IF IT IS A VALID SAMPLE
-        // Add timestamps and values of signal
-        String timestampStr = lineValues[1];
-        String valueStr = lineValues[2];
-        if (StringUtils.isNumeric(timestampStr)) {
-            timeSet.add(timestampStr);
+        // Add timestamps and values of signal, both or none so they stay aligned
+        if (!lineParser.isNumeric()) {
+            WriteLog("Sample skipped, timestamp or value is not a number: " + incomingDataCounter + "\t" + line + "\tmalformed lines=" + lineParser.getMalformedLines());
+            return;
+        }
+        if (!sampleBuffer.add(lineParser.getTimestamp(), lineParser.getValue())) {
+            // The processing is so late that the ring is full of blocks waiting for it. The oldest samples belong to the
+            // block being processed and cannot be overwritten, so the new ones are dropped until it is released
+            if(droppedSamples == 0)
+                WriteLog("Samples dropped from line " + incomingDataCounter + ", the blocks in processing fill the buffer. " + processingWorker);
+            droppedSamples++;
+            return;
         }
-        if (StringUtils.isNumeric(valueStr)) {
-            valueSet.add(Double.valueOf(valueStr));
+        if(droppedSamples > 0)
+        {
+            WriteLog(droppedSamples + " samples dropped up to line " + (incomingDataCounter - 1) + ", the peak tracking starts again");
+            droppedSamples = 0;
+            // The samples before the gap do not go on with this one, the held blocks stay readable
+            sampleBuffer.discard(sampleBuffer.size() - 1);
+            nextBlockStartsStream = true;
         }
 
         //System.out.println("Line Count: " + incomingDataCounter);
 
+        // The samples kept for the previous mode do not fit the new one, start again.
+        // The mode is read once, so the whole block is cut for the same one
+        boolean streaming = streamingMode;
+        if(streaming != bufferedStreamingMode)
+        {
+            bufferedStreamingMode = streaming;
+            sampleBuffer.clear();
+            nextBlockStartsStream = true;
+        }
+
         // When it reaches the amount of samples to process, then calculate peaks.
-        int timeSetSize = timeSet.size();
-        int valueSetSize = valueSet.size();
-        if(valueSetSize == DATA_BLOCK_TO_PROCESS)
+        int blockSize = streaming ? streamingHrvEngine.getWindowSize() : DATA_BLOCK_TO_PROCESS;
+        if(sampleBuffer.size() == blockSize)
         {
-            if(valueSetSize == timeSetSize)
+            // The worker reads the block in place and releases it when done, the samples are not copied
+            SampleBlock block = sampleBuffer.acquireBlock(blockSize);
+            long sequence = nextBlockSequence++;
+            ProcessingJob job = null;
+            if(block != null)
             {
-                // Transform from List<double> to double[]
-                signalValues = new double[valueSetSize];
-                for(int j=0; j<valueSet.size(); j++)
-                {
-                    signalValues[j] = valueSet.get(j);
-                }
+                job = processingJobs[block.getIndex()];
+                job.block = block;
+                job.streaming = streaming;
+                job.precision = processingPrecision;
+                job.traceLevel = traceLevel;
+                job.newStream = nextBlockStartsStream;
+                job.sequence = sequence;
+                job.lineCount = incomingDataCounter;
+                nextBlockStartsStream = false;
+            }
+            else
+            {
+                // Every block is held by the worker, this one is skipped and the worker sees the gap in the numbers
+                WriteLog("Block " + sequence + " skipped, every block is waiting for the processing. " + processingWorker);
+            }
 
 /*
                 //////// TODO: ERROR WHEN SENDING CALCULATION TO AsyncTask
@@ -405,80 +607,127 @@ public class MainActivity extends AppCompatActivity {
                 //////// TODO: ----- END OF ASYNC TASK
 */
 
-                ///// TODO: ERROR_START: START OF SECTION WITH BUG
-                ///// Calculate peaks, the list contains the indexes where a peak was found, from 0 to DATA_BLOCK_TO_PROCESS (1024)
-                // Processing without threads. Problem: Each 16 secs, the HRV is higher due to missed values during processing time.
-                List<Integer> validPeakPositions = SignalAnalyzer.ProcessSignals(signalValues, 50, WINDOW_OVERLAP, firstProcessingRound, writerProcSgn);
-
-                // First samples were already written
-                firstProcessingRound = false;
+            // Hands the lines of the block to the log writer as one record, it commits them within its durability window
+            try {
+                writerSignal.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
 
-                String peakTimeStampStr;
-                int peakPosition;
-                //////////////////// LOOP TO PROCESS DETECTED PEAKS
-                // The indexes are mapped in the array of timestamps to specify the specific time when the peak was detected
-                for(int k=0; k<validPeakPositions.size(); k++) {
+            // The peaks are calculated by the worker, the receiving thread goes on with the next samples
+            if(job != null)
+                processingWorker.submit(job);
 
-                    peakPosition = validPeakPositions.get(k);
-                    peakTimeStampStr = timeSet.get(peakPosition);
-                    WriteLog("PEAK " + k + ": " + peakPosition + " = " + peakTimeStampStr);
+            // Drop the samples before the next calculation, the overlapping samples necessary for it stay in place
+            int hopSize = streaming ? streamingHrvEngine.getHopSize() : blockSize-2*WINDOW_OVERLAP;
+            sampleBuffer.discard(hopSize);
+            WriteLog("Peaks are being calculated, remaining samples in buffer to overlap with next calculation: " + sampleBuffer.size());
+        }
 
-                    // Get the time of the last detected peak
-                    if(StringUtils.isNumeric(peakTimeStampStr)) {
-                        timeStampPeak = Double.parseDouble(peakTimeStampStr);
-                    }
-                    else {
-                        WriteLog("Error parsing peak timestamp, is not numeric. Value = " + timeStampLastPeak);
-                        timeStampPeak = 0.0;
-                    }
+        // Read new line
+        //line = reader.readLine();
+    }
 
-                    // Is the first peak that was detected in the signal acquisition, no HRV is calculated
-                    if(timeStampPeak == 0.0 || timeStampLastPeak == 0.0) {
-                        calculatedHRV = 0.0;
-                    }
-                    else
-                    {
-                        calculatedHRV = timeStampPeak - timeStampLastPeak;
-                        if(calculatedHRV/1000 >= HRV_LOWER_LIMIT_MS && calculatedHRV/1000 <= HRV_UPPER_LIMIT_MS)
-                        {
-                            lastValidHRV = calculatedHRV;
-                        }
-                    }
+    // Calculates the peaks of a block, on the processing worker thread
+    private static void ProcessBlock(ProcessingJob job) {
+        // After a change of mode or dropped blocks, the peak tracking and the last peak do not apply
+        boolean blocksDropped = lastProcessedSequence >= 0 && job.sequence != lastProcessedSequence + 1;
+        if(job.newStream || blocksDropped)
+        {
+            peakTrackingState.reset();
+            streamingHrvEngine.reset();
+            if(blocksDropped)
+            {
+                WriteLog("Blocks dropped before block " + job.sequence + ", the peak tracking starts again. " + processingWorker);
+                timeStampLastPeak = 0.0;
+            }
+        }
+        lastProcessedSequence = job.sequence;
+        processedLineCount = job.lineCount;
+        SampleBlock block = job.block;
+        double[] blockValues = block.values();
+        long[] blockTimestamps = block.timestamps();
+        int blockOffset = block.getOffset();
+        processedBlockSize = block.getLength();
+
+        ///// TODO: ERROR_START: START OF SECTION WITH BUG
+        ///// Calculate peaks, the list contains the indexes where a peak was found, from 0 to DATA_BLOCK_TO_PROCESS (1024)
+        // Processing on the worker thread, the samples that arrive meanwhile are not missed anymore.
+        if(job.streaming)
+        {
+            // Only the peaks the previous windows did not report reach ProcessPeak. The windows overlap,
+            // so the processed signal is only written in block mode
+            streamingHrvEngine.getEngine().getTrace().setLevel(job.traceLevel);
+            streamingHrvEngine.process(blockValues, blockOffset, blockTimestamps, blockOffset, peakSink);
+            WriteTrace(streamingHrvEngine.getEngine().getTrace());
+            WriteQualityMetrics(streamingHrvEngine.getEngine());
+        }
+        else
+        {
+            HrvEngine engine = job.precision == Precision.SINGLE ? singlePrecisionHrvEngine : hrvEngine;
+            engine.getTrace().setLevel(job.traceLevel);
+            // The peaks are handled by ProcessPeak as they are found
+            if(engine.process(blockValues, blockOffset, blockTimestamps, blockOffset, peakSink) >= 0 && writerProcSgn != null)
+            {
+                try {
+                    engine.writeProcessedSignal(writerProcSgn, firstProcessingRound);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            // The decisions of the detector are only formatted here, after the block
+            WriteTrace(engine.getTrace());
+            WriteQualityMetrics(engine);
+        }
 
-                    // Send to receiver only valid HRV, meaning within the ranges.
-                    SendThroughUDP("HRV," + timeSet.get(peakPosition) + "," + Double.toString(calculatedHRV) + "\n");
-
-                    // Store the calculated HRV even if the value is outside the ranges. To be processed offline.
-                    try{
-                        // Write the timestamp corresponding to the detected peak
-                        writerPeaksAndHRV.write(Integer.toString(incomingDataCounter - DATA_BLOCK_TO_PROCESS + peakPosition) + "," +
-                                                                    timeSet.get(peakPosition) + "," + Double.toString(calculatedHRV));
-                        writerPeaksAndHRV.newLine();
-                        writerPeaksAndHRV.flush();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        // First samples were already written
+        firstProcessingRound = false;
+        ///// TODO: ERROR_END: END OF SECTION WITH BUG
+    }
 
-                    // Swap variables of last and second last detected peaks.
-                    timeStampLastPeak = timeStampPeak;
+    // Calculates the HRV from the previous peak, sends it and logs it
+    private static void ProcessPeak(int peakPosition, long timestampMicros, double amplitude) {
+        String peakTimeStampStr = Long.toString(timestampMicros);
+        WriteLog("PEAK: " + peakPosition + " = " + peakTimeStampStr + " amplitude=" + amplitude);
 
-                }
-                ///// TODO: ERROR_END: END OF SECTION WITH BUG
+        // Get the time of the last detected peak
+        if(timestampMicros != PeakSink.NO_TIMESTAMP) {
+            timeStampPeak = timestampMicros;
+        }
+        else {
+            WriteLog("Error, the peak has no timestamp. Last peak = " + timeStampLastPeak);
+            timeStampPeak = 0.0;
+        }
 
-                // Clear the samples from the lists for the next calculation, but leaving the overlapping samples necessary for the next calculation
-                timeSet.subList(0,timeSetSize-2*WINDOW_OVERLAP).clear();
-                valueSet.subList(0,valueSetSize-2*WINDOW_OVERLAP).clear();
-                WriteLog("Peaks are being calculated, remaining samples in array to overlap with next calculation. timSetSize=" + timeSet.size() + " and valueSetSize=" + valueSet.size());
-            }
-            else {
-                WriteLog("Array of timestamps and values are not the same, deleting arrays: " + valueSetSize + " vs. " + timeSetSize);
-                timeSet.clear();
-                valueSet.clear();
+        // Is the first peak that was detected in the signal acquisition, no HRV is calculated
+        if(timeStampPeak == 0.0 || timeStampLastPeak == 0.0) {
+            calculatedHRV = 0.0;
+        }
+        else
+        {
+            calculatedHRV = timeStampPeak - timeStampLastPeak;
+            if(calculatedHRV/1000 >= HRV_LOWER_LIMIT_MS && calculatedHRV/1000 <= HRV_UPPER_LIMIT_MS)
+            {
+                lastValidHRV = calculatedHRV;
             }
         }
 
-        // Read new line
-        //line = reader.readLine();
+        // Send to receiver only valid HRV, meaning within the ranges.
+        SendThroughUDP("HRV," + peakTimeStampStr + "," + Double.toString(calculatedHRV) + "\n");
+
+        // Store the calculated HRV even if the value is outside the ranges. To be processed offline.
+        try{
+            // Write the timestamp corresponding to the detected peak
+            writerPeaksAndHRV.write(Integer.toString(processedLineCount - processedBlockSize + peakPosition) + "," +
+                                                        peakTimeStampStr + "," + Double.toString(calculatedHRV));
+            writerPeaksAndHRV.newLine();
+            writerPeaksAndHRV.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Swap variables of last and second last detected peaks.
+        timeStampLastPeak = timeStampPeak;
     }
 
     // Callback when asynchronous signal processing is done
@@ -508,22 +757,7 @@ public class MainActivity extends AppCompatActivity {
     private void CreateOrResetLoggers()
     {
         areLoggersReady = false;
-        if(!firstLogger) {
-            // Log was not running. It is the first set of logs
-            try {
-                // Log was running. Stop it and create new ones.
-                if(writerSignal != null)
-                    writerSignal.close();
-                if(writerProcSgn != null)
-                    writerProcSgn.close();
-                if(writerPeaksAndHRV != null)
-                    writerPeaksAndHRV.close();
-                if(writerDebug != null)
-                    writerDebug.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        loggersResetPending = true;
 
         // CREATE NEW FOLDER NAME WITH THE EDIT FIELD TEXT
         String currentLogFolderPath = StringUtils.CreateTimestamp(mLogFolderName.getText().toString());
@@ -553,31 +787,61 @@ public class MainActivity extends AppCompatActivity {
         peaksAndHRVLogger = new File(fullFolderPath + peaksAndHRVLoggerFilename);
         debugLogger = new File(fullFolderPath + "debugLogger.txt");
 
+        // Closing the previous session waits for the processing and the log writer, so it is not done on the UI thread
+        sessionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ResetSession();
+            }
+        });
+    }
+
+    // Closes the loggers of the previous session and opens the new ones, on the session thread
+    private static void ResetSession()
+    {
+        areLoggersReady = false;
+        // The blocks of the previous session are dropped, and the one being processed is finished before its files are closed
+        processingWorker.clear();
+        try {
+            if(!processingWorker.awaitIdle(2000))
+                Log.w(TAG, "Signal processing still running while the loggers are reset");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if(!firstLogger) {
+            // Log was not running. It is the first set of logs
+            CloseLoggers();
+        }
+        // The lines still queued are written before the files are closed
+        ShutdownLogWriter();
+
+        boolean opened = false;
+        logWriter = new AsyncLogWriter("SessionLogs");
         try {
             // Result of peaks
-            writerSignal = new BufferedWriter(new FileWriter(signalLogger, true));
+            writerSignal = new BufferedWriter(logWriter.open(new FileWriter(signalLogger, true)));
             writerSignal.write("type,timestamp_usec,value,accuracy");
             writerSignal.newLine();
             writerSignal.flush();
 
             // Result of processed signal
-            writerProcSgn = new BufferedWriter(new FileWriter(processedSignalLogger, true));
+            writerProcSgn = new BufferedWriter(logWriter.open(new FileWriter(processedSignalLogger, true)));
             writerProcSgn.write("denoisedSignal");
             writerProcSgn.newLine();
             writerProcSgn.flush();
 
             // Result of peaks and HRV
-            writerPeaksAndHRV = new BufferedWriter(new FileWriter(peaksAndHRVLogger, true));
+            writerPeaksAndHRV = new BufferedWriter(logWriter.open(new FileWriter(peaksAndHRVLogger, true)));
             writerPeaksAndHRV.write("lineNumber,timestampValue,calculatedHRV");
             writerPeaksAndHRV.newLine();
             writerPeaksAndHRV.flush();
 
             // DEBUG
-            writerDebug = new BufferedWriter(new FileWriter(debugLogger, true));
+            writerDebug = new BufferedWriter(logWriter.open(new FileWriter(debugLogger, true)));
             writerDebug.write("SESSION LOG");
             writerDebug.newLine();
             writerDebug.flush();
-            areLoggersReady = true;
+            opened = true;
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -586,11 +850,106 @@ public class MainActivity extends AppCompatActivity {
         // The next resets, the application needs to close the files to create new Log files
         firstLogger = false;
 
-        // Restart Signal Analyzer info
-        timeSet = new ArrayList<String>();
-        valueSet = new ArrayList<Double>();
-        incomingDataCounter = 0;
+        // Restart Signal Analyzer info, the samples and the line counters are reset by the receiving thread
         firstProcessingRound = true;
+        if(!processingWorker.start(2000))
+            Log.w(TAG, "Previous signal processing still running, the blocks are dropped until the next reset. " + processingWorker);
+
+        if(opened)
+        {
+            // Seen by the receiving thread no later than the new loggers
+            resetRequested = true;
+            areLoggersReady = true;
+        }
+        loggersResetPending = false;
+    }
+
+    // Stops the processing and closes the loggers when the activity is destroyed, on the session thread
+    private static void StopSession()
+    {
+        areLoggersReady = false;
+        // Stop the worker, the blocks still waiting are dropped
+        try {
+            if(!processingWorker.shutdown(false, 1000))
+                Log.w(TAG, "Signal processing still running after 1 second, " + processingWorker);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        CloseLoggers();
+        ShutdownLogWriter();
+    }
+
+    private static void CloseLoggers()
+    {
+        try {
+            // Log was running, the lines still buffered go to the log writer before their files are closed
+            if(writerSignal != null)
+                writerSignal.close();
+            if(writerProcSgn != null)
+                writerProcSgn.close();
+            if(writerPeaksAndHRV != null)
+                writerPeaksAndHRV.close();
+            if(writerDebug != null)
+                writerDebug.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Selects how much of the peak detector decisions goes to the debug log: PeakTrace.OFF, CHUNK or PEAK.
+    // It applies from the next block of samples, the worker sets it on the engines it processes with
+    public static void SetTraceLevel(int level)
+    {
+        traceLevel = level;
+        WriteLog("Peak detector trace level set to " + level);
+    }
+
+    // Selects the precision of the signal processing, it applies from the next block of samples
+    public static void SetProcessingPrecision(Precision precision)
+    {
+        processingPrecision = precision;
+        WriteLog("Signal processing precision set to " + precision);
+    }
+
+    // Selects the low latency streaming mode or the block mode, in double precision. The samples kept so far are dropped
+    public static void SetStreamingMode(boolean streaming)
+    {
+        streamingMode = streaming;
+        WriteLog("Streaming mode set to " + streaming + ", maximum peak latency " + streamingHrvEngine.getMaxLatency() + " samples");
+    }
+
+    // Writes the lines still queued and closes the files of the session
+    private static void ShutdownLogWriter()
+    {
+        if(logWriter == null)
+            return;
+        try {
+            if(!logWriter.shutdown(2000))
+                Log.w(TAG, "Log writer still running after 2 seconds, " + logWriter);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        Log.d(TAG, logWriter.toString());
+        logWriter = null;
+    }
+
+    // Logs the chunks of the last block rejected by the signal quality gate, with the totals per reason
+    private static void WriteQualityMetrics(HrvEngine engine)
+    {
+        if(engine.getSkippedChunks() > 0)
+            WriteLog("Signal quality gate skipped " + engine.getSkippedChunks() + " chunks of the block, " + engine.getQualityGate());
+    }
+
+    private static void WriteTrace(PeakTrace trace)
+    {
+        try {
+            if(areLoggersReady)
+                trace.writeTo(writerDebug);
+            else
+                trace.clear();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public static void WriteLog(String message)
@@ -783,8 +1142,8 @@ public class MainActivity extends AppCompatActivity {
 
     // Tizen Details Callbacks
     public void Connect(View view) {
-        // Setup everything if the logs are not configured
-        if(!areLoggersReady)
+        // Setup everything if the logs are not configured, and not being configured already
+        if(!areLoggersReady && !loggersResetPending)
             CreateOrResetLoggers();
 
         // Find Peers
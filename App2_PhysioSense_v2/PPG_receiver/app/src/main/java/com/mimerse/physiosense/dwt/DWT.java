@@ -46,10 +46,97 @@ public class DWT {
 		}
 	}
 
+	/**
+	 * Same transform as transform(), but with the plan taken from the
+	 * workspace and the result written into dst, so that no memory is
+	 * allocated. Obtain the workspace once per stream, e.g. new
+	 * DwtWorkspace(DwtPlan.get(wavelet, order, L, n)), and reuse it.
+	 * 
+	 * @param src
+	 *            signal or coefficients, length = plan length
+	 * @param dst
+	 *            receives the result, may be the same array as src
+	 * @param direction
+	 *            forward = transform, reverse = inverse transform
+	 * @param ws
+	 *            caller-owned workspace
+	 */
+	public static void transformInto(double[] src, double[] dst,
+			Direction direction, DwtWorkspace ws) {
+		if (direction == Direction.forward) {
+			ws.getPlan().forward(src, dst, ws);
+		} else {
+			ws.getPlan().inverse(src, dst, ws);
+		}
+	}
+
 	public static enum Direction {
 		forward, reverse
 	}
 
+	/**
+	 * How a block is extended beyond its edges before it is transformed.
+	 * periodic wraps the block around (the plain DWT, with a jump between the
+	 * last and the first sample); symmetric mirrors the block at both edges
+	 * (see symmetricExtension), so the filters see a continuous signal there.
+	 */
+	public static enum Boundary {
+		periodic, symmetric
+	}
+
+	/**
+	 * Half-sample symmetric extension of x[offset..offset+length-1]: the block
+	 * is copied to dst[margin..margin+length-1] and every other sample of
+	 * dst[0..n-1] is its mirror image, ... x1 x0 | x0 x1 ... x(len-1) |
+	 * x(len-1) x(len-2) ..., repeated with period 2 * length when the margins
+	 * are longer than the block.
+	 * 
+	 * @param n
+	 *            number of samples written to dst
+	 * @param margin
+	 *            position of the first sample of the block in dst
+	 */
+	public static void symmetricExtension(double[] x, int offset, int length,
+			double[] dst, int n, int margin) {
+		checkExtension(x.length, offset, length, dst.length, n, margin);
+		for (int i = 0; i < n; i++) {
+			dst[i] = x[offset + mirror(i - margin, length)];
+		}
+	}
+
+	/**
+	 * Single precision version of symmetricExtension(double[], ...)
+	 */
+	public static void symmetricExtension(float[] x, int offset, int length,
+			float[] dst, int n, int margin) {
+		checkExtension(x.length, offset, length, dst.length, n, margin);
+		for (int i = 0; i < n; i++) {
+			dst[i] = x[offset + mirror(i - margin, length)];
+		}
+	}
+
+	private static int mirror(int i, int length) {
+		int period = 2 * length;
+		int r = i % period;
+		if (r < 0) {
+			r += period;
+		}
+		return r < length ? r : period - 1 - r;
+	}
+
+	private static void checkExtension(int xLength, int offset, int length,
+			int dstLength, int n, int margin) {
+		if (length < 1 || offset < 0 || offset + length > xLength) {
+			throw new IllegalArgumentException("Invalid block: offset="
+					+ offset + ", length=" + length);
+		}
+		if (n > dstLength || margin < 0 || margin + length > n) {
+			throw new IllegalArgumentException("Extension of " + n
+					+ " samples with margin " + margin
+					+ " cannot hold a block of " + length);
+		}
+	}
+
 	/**
 	 * 
 	 * @param signal
@@ -66,26 +153,7 @@ public class DWT {
 	 */
 	public static double[] forwardDwt(double[] signal, Wavelet wavelet,
 			int order, int L) throws Exception {
-		int n = signal.length;
-		if (!isValidChoices(wavelet, order, L, n)) {
-			throw new Exception(
-					"Invalid wavelet /order/scale/signal-length combination.");
-		}
-		double[] dWT = MatrixOps.deepCopy(signal);
-		int log2n = (int) (Math.log(n) / Math.log(2));
-		int iterations = log2n - L;
-		int subLength = n;
-		double[] H = OrthogonalFilters.getLowPass(wavelet, order);
-		double[] G = OrthogonalFilters.getHighPass(H);
-		for (int i = 0; i < iterations; i++) {
-			subLength = n / (int) (Math.pow(2, i));
-			double[][] QMF = makeQMFMatrix(subLength, H, G);
-			double[] subResult = new double[subLength];
-			subResult = subCopy(dWT, subResult, subLength);
-			double[] temp = MatrixOps.multiply(QMF, subResult);
-			dWT = subCopy(temp, dWT, subLength);
-		}
-		return dWT;
+		return DwtPlan.get(wavelet, order, L, signal.length).forward(signal);
 	}
 
 	/**
@@ -104,69 +172,232 @@ public class DWT {
 	 */
 	public static double[] inverseDwt(double[] signal, Wavelet wavelet,
 			int order, int L) throws Exception {
-		int n = signal.length;
-		if (!isValidChoices(wavelet, order, L, n)) {
-			throw new Exception(
-					"Invalid wavelet /order/scale/signal-length combination.");
+		return DwtPlan.get(wavelet, order, L, signal.length).inverse(signal);
+	}
+
+	/**
+	 * One level of the periodic filter bank: convolve the first scale samples
+	 * of x with H and G and keep every second output. This is the product of
+	 * the quadrature mirror matrix QMF[scale][scale] with x, evaluated without
+	 * building the matrix. Terms are added in increasing column order, the
+	 * same order as MatrixOps.multiply(QMF, x), so the coefficients are
+	 * bit-for-bit identical to the matrix form.
+	 * 
+	 * @param x
+	 *            input, only x[0..scale-1] is read
+	 * @param out
+	 *            approximation in out[0..scale/2-1], detail in
+	 *            out[scale/2..scale-1]
+	 * @param scale
+	 *            current sub-signal length, must not be shorter than H
+	 * @param H
+	 *            low pass filter
+	 * @param G
+	 *            high pass filter
+	 */
+	static void analysisStep(double[] x, double[] out, int scale,
+			double[] H, double[] G) {
+		int filterLen = H.length;
+		int half = scale / 2;
+		lowPassAnalysisStep(x, 0, out, 0, scale, H);
+		for (int i = 0; i < half; i++) {
+			int skip = 2 * i + 2 - filterLen;
+			double sum = 0.0;
+			// wrapped taps land on the highest columns, add them last
+			for (int t = Math.max(0, -skip); t < filterLen; t++) {
+				sum += G[t] * x[t + skip];
+			}
+			for (int t = 0; t < -skip; t++) {
+				sum += G[t] * x[t + skip + scale];
+			}
+			out[half + i] = sum;
 		}
-		int log2n = (int) (Math.log(n) / Math.log(2));
-		int subLength;
-		double[] preserveCopy = new double[signal.length];
-		preserveCopy = subCopy(signal, preserveCopy, signal.length);
-		double[] H = OrthogonalFilters.getLowPass(wavelet, order);
-		double[] G = OrthogonalFilters.getHighPass(H);
-		for (int i = L + 1; i <= log2n; i++) {
-			subLength = (int) (Math.pow(2, i));
-			double[][] QMF = makeQMFMatrix(subLength, H, G);
-			QMF = MatrixOps.transpose(QMF);
-			double[] subResult = new double[subLength];
-			subCopy(signal, subResult, subLength);
-			subResult = MatrixOps.multiply(QMF, subResult);
-			signal = subCopy(subResult, signal, subLength);
+	}
+
+	/**
+	 * Low pass half of analysisStep, reading and writing at an offset so that
+	 * the approximations of successive levels can share one array.
+	 * 
+	 * @param x
+	 *            input, only x[xOffset..xOffset+scale-1] is read
+	 * @param out
+	 *            approximation in out[outOffset..outOffset+scale/2-1]
+	 * @param scale
+	 *            current sub-signal length, must not be shorter than H
+	 * @param H
+	 *            low pass filter
+	 */
+	static void lowPassAnalysisStep(double[] x, int xOffset, double[] out,
+			int outOffset, int scale, double[] H) {
+		int filterLen = H.length;
+		int half = scale / 2;
+		for (int i = 0; i < half; i++) {
+			int skip = 2 * i;
+			double sum = 0.0;
+			// wrapped taps land on the lowest columns, add them first
+			for (int j = scale - skip; j < filterLen; j++) {
+				sum += H[j] * x[xOffset + j + skip - scale];
+			}
+			int end = Math.min(filterLen, scale - skip);
+			for (int j = 0; j < end; j++) {
+				sum += H[j] * x[xOffset + j + skip];
+			}
+			out[outOffset + i] = sum;
 		}
-		double[] iDWT = new double[n];
-		iDWT = subCopy(signal, iDWT, n);
-		signal = preserveCopy;
-		return iDWT;
 	}
 
 	/**
-	 * Make a quadrature mirror matrix
+	 * Low pass half of synthesisStep: reconstruct scale samples from the
+	 * approximation alone, as if the detail half were zero.
 	 * 
+	 * @param y
+	 *            approximation in y[yOffset..yOffset+scale/2-1]
+	 * @param out
+	 *            reconstructed out[outOffset..outOffset+scale-1]
 	 * @param scale
+	 *            reconstructed length, must not be shorter than H
 	 * @param H
 	 *            low pass filter
+	 * @param subtract
+	 *            subtract the reconstruction from out instead of storing it
+	 */
+	static void lowPassSynthesisStep(double[] y, int yOffset, double[] out,
+			int outOffset, int scale, double[] H, boolean subtract) {
+		int filterLen = H.length;
+		int half = scale / 2;
+		for (int k = 0; k < scale; k++) {
+			double sum = 0.0;
+			for (int i = Math.max(0, (k - filterLen + 2) >> 1); i <= (k >> 1); i++) {
+				sum += H[k - 2 * i] * y[yOffset + i];
+			}
+			for (int i = ((k + scale - filterLen) >> 1) + 1; i < half; i++) {
+				sum += H[k - 2 * i + scale] * y[yOffset + i];
+			}
+			if (subtract) {
+				out[outOffset + k] -= sum;
+			} else {
+				out[outOffset + k] = sum;
+			}
+		}
+	}
+
+	/**
+	 * Single precision version of lowPassAnalysisStep, the sums are
+	 * accumulated in float as well.
+	 */
+	static void lowPassAnalysisStep(float[] x, int xOffset, float[] out,
+			int outOffset, int scale, float[] H) {
+		int filterLen = H.length;
+		int half = scale / 2;
+		for (int i = 0; i < half; i++) {
+			int skip = 2 * i;
+			float sum = 0.0f;
+			for (int j = scale - skip; j < filterLen; j++) {
+				sum += H[j] * x[xOffset + j + skip - scale];
+			}
+			int end = Math.min(filterLen, scale - skip);
+			for (int j = 0; j < end; j++) {
+				sum += H[j] * x[xOffset + j + skip];
+			}
+			out[outOffset + i] = sum;
+		}
+	}
+
+	/**
+	 * Single precision version of lowPassSynthesisStep, the sums are
+	 * accumulated in float as well.
+	 */
+	static void lowPassSynthesisStep(float[] y, int yOffset, float[] out,
+			int outOffset, int scale, float[] H, boolean subtract) {
+		int filterLen = H.length;
+		int half = scale / 2;
+		for (int k = 0; k < scale; k++) {
+			float sum = 0.0f;
+			for (int i = Math.max(0, (k - filterLen + 2) >> 1); i <= (k >> 1); i++) {
+				sum += H[k - 2 * i] * y[yOffset + i];
+			}
+			for (int i = ((k + scale - filterLen) >> 1) + 1; i < half; i++) {
+				sum += H[k - 2 * i + scale] * y[yOffset + i];
+			}
+			if (subtract) {
+				out[outOffset + k] -= sum;
+			} else {
+				out[outOffset + k] = sum;
+			}
+		}
+	}
+
+	/**
+	 * High pass half of synthesisStep: reconstruct scale samples from the
+	 * detail alone, as if the approximation half were zero.
+	 * 
+	 * @param y
+	 *            detail in y[yOffset..yOffset+scale/2-1]
+	 * @param out
+	 *            reconstructed out[outOffset..outOffset+scale-1]
+	 * @param scale
+	 *            reconstructed length, must not be shorter than G
 	 * @param G
 	 *            high pass filter
-	 * @return QMF[scale][scale]
 	 */
-	private static double[][] makeQMFMatrix(int scale, double[] H, double[] G) {
-		int filterLen = H.length;
-		int skip = 0;
-		double[][] QMF = new double[scale][scale];
-		for (int i = 0; i < (scale / 2); i++) {
-			for (int j = 0; j < filterLen; j++) {
-				int location = j + skip;
-				if (location > scale - 1)// wrap
-				{
-					location = location - (scale);
-				}
-				QMF[i][location] = H[j];
+	static void highPassSynthesisStep(double[] y, int yOffset, double[] out,
+			int outOffset, int scale, double[] G) {
+		int filterLen = G.length;
+		int half = scale / 2;
+		for (int k = 0; k < scale; k++) {
+			double sum = 0.0;
+			for (int i = 0; i <= ((k - scale + filterLen - 2) >> 1); i++) {
+				sum += G[k - scale - 2 * i - 2 + filterLen] * y[yOffset + i];
 			}
-			skip += 2;
+			int last = Math.min(half - 1, (k + filterLen - 2) >> 1);
+			for (int i = k >> 1; i <= last; i++) {
+				sum += G[k - 2 * i - 2 + filterLen] * y[yOffset + i];
+			}
+			out[outOffset + k] = sum;
 		}
-		skip = scale - 1;
-		for (int i = scale - 1; i >= (scale / 2); i--) {
-			for (int j = filterLen - 1; j >= 0; j--) {
-				int location = -j + skip;
-				if (location < 0) {
-					location += scale;
-				}
-				QMF[i][location] = G[filterLen - j - 1];
+	}
+
+	/**
+	 * Inverse of analysisStep: upsample the approximation and detail halves
+	 * of y and convolve them with the time reversed filters. This is the
+	 * product of the transposed quadrature mirror matrix with y, with the
+	 * terms added in increasing row order as in MatrixOps.multiply.
+	 * 
+	 * @param y
+	 *            approximation in y[0..scale/2-1], detail in
+	 *            y[scale/2..scale-1]
+	 * @param out
+	 *            reconstructed out[0..scale-1]
+	 * @param scale
+	 *            reconstructed length, must not be shorter than H
+	 * @param H
+	 *            low pass filter
+	 * @param G
+	 *            high pass filter
+	 */
+	static void synthesisStep(double[] y, double[] out, int scale,
+			double[] H, double[] G) {
+		int filterLen = H.length;
+		int half = scale / 2;
+		for (int k = 0; k < scale; k++) {
+			double sum = 0.0;
+			// low pass rows: unwrapped taps first, then the wrapped ones
+			for (int i = Math.max(0, (k - filterLen + 2) >> 1); i <= (k >> 1); i++) {
+				sum += H[k - 2 * i] * y[i];
+			}
+			for (int i = ((k + scale - filterLen) >> 1) + 1; i < half; i++) {
+				sum += H[k - 2 * i + scale] * y[i];
 			}
-			skip -= 2;
+			// high pass rows: wrapped taps first, then the unwrapped ones
+			for (int i = 0; i <= ((k - scale + filterLen - 2) >> 1); i++) {
+				sum += G[k - scale - 2 * i - 2 + filterLen] * y[half + i];
+			}
+			int last = Math.min(half - 1, (k + filterLen - 2) >> 1);
+			for (int i = k >> 1; i <= last; i++) {
+				sum += G[k - 2 * i - 2 + filterLen] * y[half + i];
+			}
+			out[k] = sum;
 		}
-		return QMF;
 	}
 
 	/**
@@ -194,44 +425,61 @@ public class DWT {
 	public static ArrayList<Object> mRA(double[] signal, Wavelet wavelet,
 			int order, int L) throws Exception {
 		ArrayList<Object> result = new ArrayList<Object>();
-		int n = signal.length;
-		if (!isValidChoices(wavelet, order, L, n)) {
-			throw new Exception(
-					"Invalid wavelet /order/scale/signal-length combination.");
+		double[][] bands = mRABands(signal, wavelet, order, L);
+		ArrayList<double[]> mRA = new ArrayList<double[]>(bands.length);
+		for (int i = 0; i < bands.length; i++) {
+			mRA.add(bands[i]);
 		}
-		int J = (int) (Math.log(n) / Math.log(2));
-		double[] dwt = forwardDwt(signal, wavelet, order, L);
-		ArrayList<double[]> mRA = new ArrayList<double[]>();
-		for (int j = (J - 1); j >= L; j--) {
-			double[] w = new double[n];
-			int[] dyad = dyad(j);
-			for (int k = dyad[0]; k <= dyad[dyad.length - 1]; k++) {
-				w[k - 1] = dwt[k - 1];
-			}
-			mRA.add(inverseDwt(w, wavelet, order, L));
-		}
-		// All frequencies lower than those revealed at L
-		double[] w = new double[n];
-		int limit = (int) Math.pow(2, L);
-		for (int i = 0; i < limit; i++) {
-			w[i] = dwt[i];
-		}
-		mRA.add(inverseDwt(w, wavelet, order, L));
+		result.add(mRA);
+		result.add(mRAScales(signal.length, L));
+		return result;
+	}
 
-		int[] scalesUsed = new int[mRA.size()];
+	/**
+	 * Multi-resolution analysis computed in a single cascaded pass (see
+	 * DwtPlan.multiResolution). The bands are the same, bit for bit, as the
+	 * ones returned by mRA.
+	 * 
+	 * @param signal
+	 *            a double[] with length = even power of two
+	 * @param wavelet
+	 *            Haar, Daubechies, etc.
+	 * @param order
+	 *            e.g Daubechies 8 has order = 8
+	 * @param L
+	 *            coarsest scale
+	 * @return double[log2(n) - L + 1][n] holding the bands from the finest
+	 *         scale to the coarsest scale, terminating with the approximation
+	 *         curve. mRAScales gives the scale of every row.
+	 * @throws Exception
+	 *             Invalid wavelet parameters
+	 */
+	public static double[][] mRABands(double[] signal, Wavelet wavelet,
+			int order, int L) throws Exception {
+		return DwtPlan.get(wavelet, order, L, signal.length).multiResolution(
+				signal);
+	}
+
+	/**
+	 * @param n
+	 *            signal length, an even power of two
+	 * @param L
+	 *            coarsest scale
+	 * @return The j values of the rows returned by mRA and mRABands, where
+	 *         scale = 2^-j, terminating with "0" for the approximation.
+	 */
+	public static int[] mRAScales(int n, int L) {
+		int J = (int) (Math.log(n) / Math.log(2));
+		int[] scalesUsed = new int[J - L + 1];
 		int scaleCounter = 0;
 		for (int j = (J - 1); j >= L; j--) {
-			int[] dyad = DWT.dyad(j);
-			scalesUsed[scaleCounter] = (int) (Math.log(dyad.length) / Math
-					.log(2));
+			scalesUsed[scaleCounter] = j;
 			scaleCounter++;
 		}
 		// Next line: 0 is a dummy value for the approximation carrying all
 		// lower frequencies corresponding to scales larger than 2^-L
 		scalesUsed[scaleCounter] = 0;
-		result.add(mRA);
-		result.add(scalesUsed);
-		return result;
+		return scalesUsed;
 	}
 
 	/**
@@ -257,21 +505,6 @@ public class DWT {
 		return dyad;
 	}
 
-	/**
-	 * Example: If source = {5, 6, 7}, destination = {1, 2, 3, 4}, and count = 2
-	 * Then result = {5, 6, 3, 4}
-	 * 
-	 * @return the first count elements in source overwrite the first count
-	 *         elements in the result.
-	 */
-	private static double[] subCopy(double[] source, double[] destination,
-			int count) {
-		for (int i = 0; i < count; i++) {
-			destination[i] = source[i];
-		}
-		return destination;
-	}
-
 	/**
 	 * 
 	 * @param x
@@ -342,7 +575,7 @@ public class DWT {
 	 *         and the signal is long enough to be analyzed at the chosen
 	 *         coarsest scale L.
 	 */
-	private static boolean isValidChoices(Wavelet wavelet, int order, int L,
+	static boolean isValidChoices(Wavelet wavelet, int order, int L,
 			int signalLength) {
 		try {
 			ArrayList<Integer> validParams = OrthogonalFilters
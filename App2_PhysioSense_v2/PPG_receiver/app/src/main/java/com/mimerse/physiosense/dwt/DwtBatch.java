@@ -0,0 +1,188 @@
+package com.mimerse.physiosense.dwt;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Class responsibility: Run the same DwtPlan over every channel of a
+ * multi-channel block, e.g. the 8 EMG channels of a Myo armband or the 4 EEG
+ * channels of a Muse headband, with the filters shared by all channels.
+ *
+ * The block is one double[] of channels * getLength() samples, either
+ * channel-major (all samples of channel 0, then channel 1, ...) or
+ * interleaved (sample 0 of every channel, then sample 1, ...), as the
+ * packets arrive. Every channel is gathered into its own contiguous buffer,
+ * transformed there and scattered back, so the filter bank always runs on
+ * unit-stride data. Buffers and workspaces are allocated once per batch.
+ *
+ * With a ForkJoinPool set, blocks of at least PARALLEL_THRESHOLD samples are
+ * split across the pool by channel. A batch must not be used by two threads
+ * at the same time.
+ */
+public class DwtBatch {
+
+	public static enum Layout {
+		channelMajor, interleaved
+	}
+
+	/**
+	 * Smallest number of samples (all channels together) worth forking for.
+	 */
+	public static final int PARALLEL_THRESHOLD = 8192;
+
+	private static final int FORWARD = 0;
+	private static final int INVERSE = 1;
+	private static final int REMOVE_APPROXIMATION = 2;
+
+	private final DwtPlan plan;
+	private final int channels;
+	private final Layout layout;
+	private final double[][] buffers;
+	private final DwtWorkspace[] workspaces;
+	private ForkJoinPool pool = null;
+
+	/**
+	 * @param plan
+	 *            transform applied to every channel
+	 * @param channels
+	 *            number of channels in a block
+	 * @param layout
+	 *            how the channels are stored in a block
+	 */
+	public DwtBatch(DwtPlan plan, int channels, Layout layout) {
+		if (channels < 1) {
+			throw new IllegalArgumentException(
+					"A batch needs at least one channel");
+		}
+		this.plan = plan;
+		this.channels = channels;
+		this.layout = layout;
+		int n = plan.getLength();
+		this.buffers = new double[channels][n];
+		this.workspaces = new DwtWorkspace[channels];
+		for (int c = 0; c < channels; c++) {
+			workspaces[c] = new DwtWorkspace(plan);
+		}
+	}
+
+	/**
+	 * @param pool
+	 *            pool used to transform the channels in parallel, or null to
+	 *            always run on the calling thread
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Forward DWT of every channel of block, in place.
+	 */
+	public void forward(double[] block) {
+		run(FORWARD, block, 0);
+	}
+
+	/**
+	 * Inverse DWT of every channel of block, in place.
+	 */
+	public void inverse(double[] block) {
+		run(INVERSE, block, 0);
+	}
+
+	/**
+	 * Removes the approximation band of every channel of block, in place
+	 * (see DwtPlan.removeApproximation).
+	 */
+	public void removeApproximation(double[] block, int approximationLength) {
+		run(REMOVE_APPROXIMATION, block, approximationLength);
+	}
+
+	public DwtPlan getPlan() {
+		return plan;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	private void run(int operation, double[] block, int approximationLength) {
+		int n = plan.getLength();
+		if (block.length != channels * n) {
+			throw new IllegalArgumentException("Block of " + block.length
+					+ " samples does not hold " + channels + " channels of "
+					+ n);
+		}
+		if (pool != null && channels > 1 && block.length >= PARALLEL_THRESHOLD) {
+			pool.invoke(new ChannelTask(operation, block, approximationLength,
+					0, channels));
+		} else {
+			transformChannels(operation, block, approximationLength, 0, channels);
+		}
+	}
+
+	private void transformChannels(int operation, double[] block,
+			int approximationLength, int firstChannel, int endChannel) {
+		int n = plan.getLength();
+		for (int c = firstChannel; c < endChannel; c++) {
+			double[] buffer = buffers[c];
+			if (layout == Layout.channelMajor) {
+				System.arraycopy(block, c * n, buffer, 0, n);
+			} else {
+				for (int i = 0, k = c; i < n; i++, k += channels) {
+					buffer[i] = block[k];
+				}
+			}
+			if (operation == FORWARD) {
+				plan.forward(buffer, buffer, workspaces[c]);
+			} else if (operation == INVERSE) {
+				plan.inverse(buffer, buffer, workspaces[c]);
+			} else {
+				plan.removeApproximation(buffer, 0, n, buffer,
+						approximationLength, workspaces[c]);
+			}
+			if (layout == Layout.channelMajor) {
+				System.arraycopy(buffer, 0, block, c * n, n);
+			} else {
+				for (int i = 0, k = c; i < n; i++, k += channels) {
+					block[k] = buffer[i];
+				}
+			}
+		}
+	}
+
+	private class ChannelTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int operation;
+		private final double[] block;
+		private final int approximationLength;
+		private final int firstChannel;
+		private final int endChannel;
+
+		ChannelTask(int operation, double[] block, int approximationLength,
+				int firstChannel, int endChannel) {
+			this.operation = operation;
+			this.block = block;
+			this.approximationLength = approximationLength;
+			this.firstChannel = firstChannel;
+			this.endChannel = endChannel;
+		}
+
+		@Override
+		protected void compute() {
+			if (endChannel - firstChannel == 1) {
+				transformChannels(operation, block, approximationLength,
+						firstChannel, endChannel);
+				return;
+			}
+			int middle = (firstChannel + endChannel) >>> 1;
+			invokeAll(new ChannelTask(operation, block, approximationLength,
+					firstChannel, middle), new ChannelTask(operation, block,
+					approximationLength, middle, endChannel));
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package com.mimerse.physiosense.dwt;
+
+/**
+ * Class responsibility: Hold everything a discrete wavelet transform of a
+ * fixed wavelet/order/scale/signal-length combination needs, so that
+ * repeated transforms of equally sized blocks do not validate the parameters
+ * or look up the filters again.
+ *
+ * Plans are immutable and are normally obtained through get(), which keeps a
+ * small cache of recently used plans. The scratch memory lives in a
+ * DwtWorkspace; the methods returning a new array use a workspace owned by
+ * the plan and serialize on it.
+ */
+public class DwtPlan {
+
+	private static final int CACHE_SIZE = 8;
+	private static final DwtPlan[] cache = new DwtPlan[CACHE_SIZE];
+	private static int nextCacheSlot = 0;
+
+	private final Wavelet wavelet;
+	private final int order;
+	private final int L;
+	private final int n;
+	private final double[] H;
+	private final double[] G;
+	private final float[] floatH;
+	private final int[] levelSizes;
+	private final DwtWorkspace sharedWorkspace;
+
+	/**
+	 * @param wavelet
+	 *            Haar, Daubechies, etc. (see OrthogonalFilters.java)
+	 * @param order
+	 *            e.g Daubechies 8 has order = 8
+	 * @param L
+	 *            coarsest scale to include in the transform
+	 * @param n
+	 *            signal length, a multiple of 2^L, normally a power of two.
+	 *            The levels halve it as long as it stays even and not
+	 *            shorter than 2^(L+1), e.g. 1536 with L = 4 gives 6 levels
+	 *            down to 24 approximation coefficients.
+	 * @throws Exception
+	 *             Invalid wavelet parameters
+	 */
+	public DwtPlan(Wavelet wavelet, int order, int L, int n) throws Exception {
+		if (n < 2 || n % (1 << L) != 0
+				|| !DWT.isValidChoices(wavelet, order, L, n)) {
+			throw new Exception(
+					"Invalid wavelet /order/scale/signal-length combination.");
+		}
+		this.wavelet = wavelet;
+		this.order = order;
+		this.L = L;
+		this.n = n;
+		this.H = OrthogonalFilters.getLowPass(wavelet, order);
+		this.G = OrthogonalFilters.getHighPass(H);
+		this.floatH = new float[H.length];
+		for (int i = 0; i < H.length; i++) {
+			floatH[i] = (float) H[i];
+		}
+		int levels = 0;
+		while (((n >> levels) & 1) == 0 && (n >> (levels + 1)) >= (1 << L)) {
+			levels++;
+		}
+		this.levelSizes = new int[levels];
+		for (int i = 0; i < levels; i++) {
+			levelSizes[i] = n >> i;
+		}
+		this.sharedWorkspace = new DwtWorkspace(this);
+	}
+
+	/**
+	 * Returns a cached plan for the given parameters, building and caching a
+	 * new one when none matches. The lookup itself does not allocate.
+	 *
+	 * @throws Exception
+	 *             Invalid wavelet parameters
+	 */
+	public static DwtPlan get(Wavelet wavelet, int order, int L, int n)
+			throws Exception {
+		synchronized (cache) {
+			for (int i = 0; i < CACHE_SIZE; i++) {
+				DwtPlan plan = cache[i];
+				if (plan != null && plan.matches(wavelet, order, L, n)) {
+					return plan;
+				}
+			}
+		}
+		DwtPlan plan = new DwtPlan(wavelet, order, L, n);
+		synchronized (cache) {
+			cache[nextCacheSlot] = plan;
+			nextCacheSlot = (nextCacheSlot + 1) % CACHE_SIZE;
+		}
+		return plan;
+	}
+
+	public boolean matches(Wavelet wavelet, int order, int L, int n) {
+		return this.wavelet == wavelet && this.order == order && this.L == L
+				&& this.n == n;
+	}
+
+	/**
+	 * @param signal
+	 *            a double[] of length getLength()
+	 * @return Forward DWT
+	 */
+	public double[] forward(double[] signal) {
+		double[] dWT = new double[n];
+		synchronized (sharedWorkspace) {
+			forward(signal, dWT, sharedWorkspace);
+		}
+		return dWT;
+	}
+
+	/**
+	 * @param signal
+	 *            DWT coefficients of length getLength()
+	 * @return reconstructed signal by inverse DWT
+	 */
+	public double[] inverse(double[] signal) {
+		double[] iDWT = new double[n];
+		synchronized (sharedWorkspace) {
+			inverse(signal, iDWT, sharedWorkspace);
+		}
+		return iDWT;
+	}
+
+	/**
+	 * Forward DWT without allocating.
+	 * 
+	 * @param src
+	 *            signal of length getLength()
+	 * @param dst
+	 *            receives the coefficients, may be the same array as src
+	 * @param ws
+	 *            workspace created for this plan
+	 */
+	public void forward(double[] src, double[] dst, DwtWorkspace ws) {
+		checkLength(src);
+		forward(src, 0, n, dst, ws);
+	}
+
+	/**
+	 * Forward DWT of src[offset..offset+length-1] zero padded to
+	 * getLength(), without allocating. This replaces copying the block and
+	 * calling DWT.padPow2 before the transform.
+	 * 
+	 * @param src
+	 *            array holding the samples
+	 * @param offset
+	 *            index of the first sample in src
+	 * @param length
+	 *            number of samples, at most getLength()
+	 * @param dst
+	 *            receives the coefficients, may be the same array as src
+	 *            when offset is 0
+	 * @param ws
+	 *            workspace created for this plan
+	 */
+	public void forward(double[] src, int offset, int length, double[] dst,
+			DwtWorkspace ws) {
+		checkWorkspace(ws, dst);
+		load(src, offset, length, dst);
+		double[] scratch = ws.scratch;
+		for (int i = 0; i < levelSizes.length; i++) {
+			int subLength = levelSizes[i];
+			DWT.analysisStep(dst, scratch, subLength, H, G);
+			System.arraycopy(scratch, 0, dst, 0, subLength);
+		}
+	}
+
+	/**
+	 * Inverse DWT without allocating.
+	 * 
+	 * @param src
+	 *            coefficients of length getLength()
+	 * @param dst
+	 *            receives the reconstructed signal, may be the same array as
+	 *            src
+	 * @param ws
+	 *            workspace created for this plan
+	 */
+	public void inverse(double[] src, double[] dst, DwtWorkspace ws) {
+		checkLength(src);
+		checkWorkspace(ws, dst);
+		if (src != dst) {
+			System.arraycopy(src, 0, dst, 0, n);
+		}
+		double[] scratch = ws.scratch;
+		for (int i = levelSizes.length - 1; i >= 0; i--) {
+			int subLength = levelSizes[i];
+			DWT.synthesisStep(dst, scratch, subLength, H, G);
+			System.arraycopy(scratch, 0, dst, 0, subLength);
+		}
+	}
+
+	/**
+	 * Multi-resolution analysis of the signal in a single cascaded pass. One
+	 * forward DWT gives the coefficients; every detail band is then
+	 * reconstructed with one high pass synthesis step at its own level
+	 * followed by low pass synthesis steps only, since all the other
+	 * coefficients of the band are zero. The intermediate signals alternate
+	 * between the output row and one temporary array. The result is the same,
+	 * bit for bit, as a full inverse DWT of each band on its own.
+	 * 
+	 * @param signal
+	 *            a double[] of length getLength()
+	 * @return double[getLevels() + 1][getLength()]: the detail bands from
+	 *         the finest to the coarsest scale, then the approximation
+	 */
+	public double[][] multiResolution(double[] signal) {
+		double[] dWT = forward(signal);
+		int levels = levelSizes.length;
+		double[][] bands = new double[levels + 1][n];
+		double[] temp = new double[n];
+		for (int i = 0; i < levels; i++) {
+			// The detail of level i takes i + 1 steps to reach length n;
+			// start in the row when that count is odd so as to end there.
+			int subLength = levelSizes[i];
+			double[] y = (i % 2 == 0) ? bands[i] : temp;
+			DWT.highPassSynthesisStep(dWT, subLength / 2, y, 0, subLength, G);
+			lowPassUp(y, subLength, bands[i], temp);
+		}
+		if (levels == 0) {
+			System.arraycopy(dWT, 0, bands[0], 0, n);
+			return bands;
+		}
+		int subLength = n >> levels;
+		double[] y = (levels % 2 == 1) ? bands[levels] : temp;
+		DWT.lowPassSynthesisStep(dWT, 0, y, 0, 2 * subLength, H, false);
+		lowPassUp(y, 2 * subLength, bands[levels], temp);
+		return bands;
+	}
+
+	private void lowPassUp(double[] y, int subLength, double[] row,
+			double[] temp) {
+		while (subLength < n) {
+			double[] out = (y == row) ? temp : row;
+			DWT.lowPassSynthesisStep(y, 0, out, 0, 2 * subLength, H, false);
+			y = out;
+			subLength *= 2;
+		}
+	}
+
+	/**
+	 * Removes the approximation band from src[offset..offset+length-1], zero
+	 * padded to getLength(). Only the low pass path is computed: the
+	 * approximation is obtained with low pass analysis steps, reconstructed
+	 * with low pass synthesis steps and subtracted from the signal. The
+	 * detail bands are never formed.
+	 * 
+	 * The result is not bit for bit the one of a forward DWT, clearing the
+	 * first approximationLength coefficients and an inverse DWT. Subtracting
+	 * the approximation assumes perfect reconstruction, signal = approximation
+	 * + details, and the tabulated filters are orthonormal only to about
+	 * 1e-13 (e.g. sum H[i]^2 - 1 = 4e-13 for Daubechies 8), so the full
+	 * transform does not give the signal back exactly either: its round trip
+	 * is off by up to 1.6e-11 times the largest sample. The two results differ
+	 * by the same order, about 1.4e-11 times the largest sample, e.g. 3.5e-5
+	 * on raw PPG values of 2.6e6 and 1.6e-4 on values of 1.2e7. That is two
+	 * orders of magnitude below the 0.01 resolution of the samples of the
+	 * watches, and the peaks found on the result are the same.
+	 * 
+	 * @param src
+	 *            array holding the samples
+	 * @param offset
+	 *            index of the first sample in src
+	 * @param length
+	 *            number of samples, at most getLength()
+	 * @param dst
+	 *            receives the signal without its approximation band, may be
+	 *            the same array as src when offset is 0
+	 * @param approximationLength
+	 *            number of approximation coefficients to remove, the
+	 *            length of the approximation of one of the levels, from
+	 *            getLength() / 2 down to getLength() / 2^getLevels() (see
+	 *            approximationLength(double, double))
+	 * @param ws
+	 *            workspace created for this plan
+	 */
+	public void removeApproximation(double[] src, int offset, int length,
+			double[] dst, int approximationLength, DwtWorkspace ws) {
+		checkApproximationLength(approximationLength);
+		checkWorkspace(ws, dst);
+		load(src, offset, length, dst);
+		double[] scratch = ws.scratch;
+		// The approximation of every level goes right after the previous one
+		// in scratch: n/2 samples at 0, n/4 at n/2, ... which fits in n.
+		int subLength = n;
+		int approximationOffset = 0;
+		DWT.lowPassAnalysisStep(dst, 0, scratch, 0, subLength, H);
+		subLength /= 2;
+		while (subLength > approximationLength) {
+			DWT.lowPassAnalysisStep(scratch, approximationOffset, scratch,
+					approximationOffset + subLength, subLength, H);
+			approximationOffset += subLength;
+			subLength /= 2;
+		}
+		// Reconstruct back into the slot of the finer level, which is no
+		// longer needed, and subtract the last level from the signal.
+		while (approximationOffset > 0) {
+			int finerOffset = approximationOffset - 2 * subLength;
+			DWT.lowPassSynthesisStep(scratch, approximationOffset, scratch,
+					finerOffset, 2 * subLength, H, false);
+			approximationOffset = finerOffset;
+			subLength *= 2;
+		}
+		DWT.lowPassSynthesisStep(scratch, 0, dst, 0, n, H, true);
+	}
+
+	/**
+	 * Single precision version of removeApproximation: the signal, the
+	 * filters and all the arithmetic are float, so the memory touched per
+	 * block is halved. The scratch memory is the float scratch of the
+	 * workspace.
+	 */
+	public void removeApproximation(float[] src, int offset, int length,
+			float[] dst, int approximationLength, DwtWorkspace ws) {
+		checkApproximationLength(approximationLength);
+		checkWorkspace(ws, dst);
+		if (length > n) {
+			throw new IllegalArgumentException("Block of " + length
+					+ " samples does not fit the plan length " + n);
+		}
+		if (src != dst || offset != 0) {
+			System.arraycopy(src, offset, dst, 0, length);
+		}
+		for (int i = length; i < n; i++) {
+			dst[i] = 0.0f;
+		}
+		float[] scratch = ws.getFloatScratch();
+		int subLength = n;
+		int approximationOffset = 0;
+		DWT.lowPassAnalysisStep(dst, 0, scratch, 0, subLength, floatH);
+		subLength /= 2;
+		while (subLength > approximationLength) {
+			DWT.lowPassAnalysisStep(scratch, approximationOffset, scratch,
+					approximationOffset + subLength, subLength, floatH);
+			approximationOffset += subLength;
+			subLength /= 2;
+		}
+		while (approximationOffset > 0) {
+			int finerOffset = approximationOffset - 2 * subLength;
+			DWT.lowPassSynthesisStep(scratch, approximationOffset, scratch,
+					finerOffset, 2 * subLength, floatH, false);
+			approximationOffset = finerOffset;
+			subLength *= 2;
+		}
+		DWT.lowPassSynthesisStep(scratch, 0, dst, 0, n, floatH, true);
+	}
+
+	/**
+	 * Number of approximation coefficients that hold the band from 0 Hz up to
+	 * cutoffHz. The first c coefficients span 0 to c Fs / (2 n) Hz, so this
+	 * is the smallest approximation length c = n / 2^j with
+	 * c Fs / (2 n) >= cutoffHz, limited to the range accepted by
+	 * removeApproximation. For example 0.78125 Hz at Fs = 50 Hz gives 32
+	 * for n = 1024 and 48 for n = 1536.
+	 * 
+	 * @param cutoffHz
+	 *            highest frequency to remove
+	 * @param samplingFrequency
+	 *            sampling frequency of the signal in Hz
+	 */
+	public int approximationLength(double cutoffHz, double samplingFrequency) {
+		double coefficients = cutoffHz * 2.0 * n / samplingFrequency;
+		int level = levelSizes.length;
+		while (level > 1 && (n >> level) < coefficients) {
+			level--;
+		}
+		return n >> level;
+	}
+
+	private void load(double[] src, int offset, int length, double[] dst) {
+		if (length > n) {
+			throw new IllegalArgumentException("Block of " + length
+					+ " samples does not fit the plan length " + n);
+		}
+		if (src != dst || offset != 0) {
+			System.arraycopy(src, offset, dst, 0, length);
+		}
+		for (int i = length; i < n; i++) {
+			dst[i] = 0.0;
+		}
+	}
+
+	private void checkApproximationLength(int approximationLength) {
+		for (int i = 0; i < levelSizes.length; i++) {
+			if (2 * approximationLength == levelSizes[i]) {
+				return;
+			}
+		}
+		throw new IllegalArgumentException("Approximation length "
+				+ approximationLength + " is not the one of a level, from "
+				+ (n / 2) + " down to " + (n >> levelSizes.length));
+	}
+
+	private void checkWorkspace(DwtWorkspace ws, double[] dst) {
+		if (ws.scratch.length < n) {
+			throw new IllegalArgumentException(
+					"Workspace was created for a shorter plan");
+		}
+		checkLength(dst);
+	}
+
+	private void checkWorkspace(DwtWorkspace ws, float[] dst) {
+		if (ws.scratch.length < n) {
+			throw new IllegalArgumentException(
+					"Workspace was created for a shorter plan");
+		}
+		if (dst.length != n) {
+			throw new IllegalArgumentException("Signal length " + dst.length
+					+ " does not match the plan length " + n);
+		}
+	}
+
+	private void checkLength(double[] signal) {
+		if (signal.length != n) {
+			throw new IllegalArgumentException("Signal length "
+					+ signal.length + " does not match the plan length " + n);
+		}
+	}
+
+	public Wavelet getWavelet() {
+		return wavelet;
+	}
+
+	public int getOrder() {
+		return order;
+	}
+
+	public int getCoarsestScale() {
+		return L;
+	}
+
+	public int getLength() {
+		return n;
+	}
+
+	/**
+	 * @return number of decomposition levels, log2(n) - L for a power of two
+	 */
+	public int getLevels() {
+		return levelSizes.length;
+	}
+
+	/**
+	 * @return sub-signal length processed at decomposition level i, n / 2^i
+	 */
+	public int getLevelSize(int i) {
+		return levelSizes[i];
+	}
+
+	double[] getLowPass() {
+		return H;
+	}
+
+	double[] getHighPass() {
+		return G;
+	}
+}
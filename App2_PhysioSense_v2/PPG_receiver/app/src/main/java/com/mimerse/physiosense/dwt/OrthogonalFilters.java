@@ -345,6 +345,16 @@ public class OrthogonalFilters {
 		return error;
 	}
 
+	/**
+	 * 
+	 * @param wavelet
+	 * @param order
+	 * @return Number of taps of the low pass filter, e.g. 8 for Daubechies 8
+	 */
+	public static int getFilterLength(Wavelet wavelet, int order) {
+		return getLowPass(wavelet, order).length;
+	}
+
 	/**
 	 * 
 	 * @param wavelet
@@ -0,0 +1,313 @@
+package com.mimerse.physiosense.signalproc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background writer of the session logs: the threads that receive and process the samples
+ * only put the text in a lock-free queue, and a single log thread writes it to the files
+ * and flushes them in groups, so the file system never stalls the signal processing.
+ * Every file is a Channel, a Writer that can be wrapped in a BufferedWriter as before: what
+ * reaches the channel, on every flush of the BufferedWriter, is queued as one record.
+ * The log thread flushes the files once batchRecords records were written, or at the latest
+ * maxDelayMillis after the oldest record that is not flushed yet, which bounds the text lost
+ * if the application dies. When more than maxPending records wait, the new ones are dropped
+ * and counted rather than blocking the caller.
+ * Closing a channel closes its file after its queued records, shutdown closes the rest.
+ */
+public class AsyncLogWriter {
+
+    public static final int DEFAULT_BATCH_RECORDS = 512;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 500;
+    public static final int DEFAULT_MAX_PENDING = 100000;
+
+    private final int batchRecords;
+    private final long maxDelayNanos;
+    private final int maxPending;
+
+    private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<Record>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final CopyOnWriteArrayList<Channel> channels = new CopyOnWriteArrayList<Channel>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    // Calls between their check of running and their add to the queue, the log thread waits for them before it stops
+    private final AtomicInteger enqueuing = new AtomicInteger();
+
+    // Metrics
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private static final class Record {
+        final Channel channel;
+        // null to close the channel
+        final String text;
+
+        Record(Channel channel, String text) {
+            this.channel = channel;
+            this.text = text;
+        }
+    }
+
+    /**
+     * File of the log, written and flushed only by the log thread.
+     */
+    public class Channel extends Writer {
+
+        private final Writer target;
+        private volatile boolean closed = false;
+        // Written and not flushed yet, log thread only
+        private boolean dirty = false;
+
+        Channel(Writer target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (len > 0)
+                enqueue(this, new String(cbuf, off, len));
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            if (len > 0)
+                enqueue(this, str.substring(off, off + len));
+        }
+
+        /**
+         * Nothing to do, the log thread flushes the file within the durability window.
+         */
+        @Override
+        public void flush() {
+        }
+
+        /**
+         * Closes the file once the records queued before are written.
+         */
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            enqueuing.incrementAndGet();
+            try {
+                // Once the writer is shut down, the log thread closes the file itself
+                if (running) {
+                    queue.add(new Record(this, null));
+                    pending.incrementAndGet();
+                    LockSupport.unpark(thread);
+                }
+            } finally {
+                enqueuing.decrementAndGet();
+            }
+        }
+    }
+
+    public AsyncLogWriter(String name) {
+        this(name, DEFAULT_BATCH_RECORDS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param name name of the log thread
+     * @param batchRecords records written between two flushes when the queue does not empty
+     * @param maxDelayMillis longest time a record waits to be flushed to its file
+     * @param maxPending records that can wait in the queue
+     */
+    public AsyncLogWriter(String name, int batchRecords, long maxDelayMillis, int maxPending) {
+        if (batchRecords < 1 || maxDelayMillis < 0 || maxPending < 1) {
+            throw new IllegalArgumentException("Invalid log writer, batchRecords=" + batchRecords + ", maxDelayMillis=" + maxDelayMillis +
+                    ", maxPending=" + maxPending);
+        }
+        this.batchRecords = batchRecords;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.maxPending = maxPending;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param target file of the channel, owned by the log thread from now on
+     */
+    public Channel open(Writer target) {
+        Channel channel = new Channel(target);
+        channels.add(channel);
+        return channel;
+    }
+
+    private void enqueue(Channel channel, String text) throws IOException {
+        if (channel.closed) {
+            throw new IOException("Log channel is closed");
+        }
+        // Counted before running is read: either shutdown is seen here, or the log thread sees this call
+        enqueuing.incrementAndGet();
+        try {
+            if (!running || pending.get() >= maxPending) {
+                dropped.incrementAndGet();
+                return;
+            }
+            queue.add(new Record(channel, text));
+            int waiting = pending.incrementAndGet();
+            // The log thread sleeps when the queue is empty, and until the delay of the oldest record otherwise
+            if (waiting == 1 || waiting >= batchRecords)
+                LockSupport.unpark(thread);
+        } finally {
+            enqueuing.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the queued records, closes every file and stops the log thread. The records
+     * written from then on are dropped, a write that raced with the shutdown is either
+     * written or dropped, never lost without being counted.
+     *
+     * @return false when the log thread was still running after the timeout
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join(timeoutMillis);
+        return !thread.isAlive();
+    }
+
+    // Loop of the log thread
+    private void writeRecords() {
+        int uncommitted = 0;
+        long oldestUncommitted = 0;
+        while (true) {
+            Record record = queue.poll();
+            if (record == null) {
+                if (!running) {
+                    if (enqueuing.get() == 0 && queue.isEmpty())
+                        break;
+                    // A write that saw the writer running is about to add its record
+                    Thread.yield();
+                    continue;
+                }
+                if (uncommitted == 0) {
+                    LockSupport.park(this);
+                } else {
+                    long wait = oldestUncommitted + maxDelayNanos - System.nanoTime();
+                    if (wait <= 0) {
+                        commit();
+                        uncommitted = 0;
+                    } else {
+                        LockSupport.parkNanos(this, wait);
+                    }
+                }
+                continue;
+            }
+            pending.decrementAndGet();
+            if (uncommitted == 0)
+                oldestUncommitted = System.nanoTime();
+            write(record);
+            uncommitted++;
+            if (uncommitted >= batchRecords) {
+                commit();
+                uncommitted = 0;
+            }
+        }
+        commit();
+        for (Channel channel : channels) {
+            closeTarget(channel);
+        }
+    }
+
+    private void write(Record record) {
+        Channel channel = record.channel;
+        if (record.text == null) {
+            closeTarget(channel);
+            return;
+        }
+        try {
+            channel.target.write(record.text);
+            channel.dirty = true;
+            written.incrementAndGet();
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            e.printStackTrace();
+        }
+    }
+
+    // Flushes the files written since the last commit
+    private void commit() {
+        boolean flushed = false;
+        for (Channel channel : channels) {
+            if (channel.dirty) {
+                try {
+                    channel.target.flush();
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    e.printStackTrace();
+                }
+                channel.dirty = false;
+                flushed = true;
+            }
+        }
+        if (flushed)
+            commits.incrementAndGet();
+    }
+
+    private void closeTarget(Channel channel) {
+        channel.closed = true;
+        channels.remove(channel);
+        try {
+            channel.target.close();
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            e.printStackTrace();
+        }
+        channel.dirty = false;
+    }
+
+    /**
+     * @return records waiting in the queue
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return records written to the files
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return flushes of the files, each one for a group of records
+     */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /**
+     * @return records dropped because the queue was full or the writer was shut down
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return thread.getName() + ": written " + getWritten() + " records in " + getCommits() + " commits, pending " + getPending() +
+                ", dropped " + getDropped() + ", failed " + getFailed();
+    }
+}
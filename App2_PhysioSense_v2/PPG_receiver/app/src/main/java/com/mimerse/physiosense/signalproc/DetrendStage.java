@@ -0,0 +1,33 @@
+package com.mimerse.physiosense.signalproc;
+
+/**
+ * Substracts the centered moving average of the MovingAverageDetrender from every sample
+ * of the batch.
+ */
+public class DetrendStage extends SignalStage {
+
+    private final MovingAverageDetrender detrender;
+
+    public DetrendStage(MovingAverageDetrender detrender) {
+        super("detrend");
+        this.detrender = detrender;
+    }
+
+    @Override
+    protected int process(double[] in, int offset, int length, double[] out) {
+        copyInput(in, offset, length, out);
+        detrender.detrend(out, length);
+        return length;
+    }
+
+    @Override
+    protected int process(float[] in, int offset, int length, float[] out) {
+        copyInput(in, offset, length, out);
+        detrender.detrend(out, length);
+        return length;
+    }
+
+    public MovingAverageDetrender getDetrender() {
+        return detrender;
+    }
+}
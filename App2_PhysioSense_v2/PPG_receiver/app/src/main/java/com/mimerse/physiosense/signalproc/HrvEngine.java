@@ -0,0 +1,319 @@
+package com.mimerse.physiosense.signalproc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+/**
+ * Peak detector of ProcessSignals for one stream of PPG blocks of a fixed
+ * length, as a SignalPipeline of four stages: wavelet baseline removal, one second moving
+ * average detrending, amplification of every chunk of 4 seconds and, per chunk, the
+ * autocorrelation check of the fundamental period followed by the peak search around the
+ * previous peak plus that period.
+ * The engine is built once per stream and its stages own every working buffer, the
+ * baseline filter plans and the peak tracking between blocks, so process() does not
+ * allocate once the first block has gone through (the DWT plan of the block length is
+ * built then). The stages before the peak detection can be replaced, reordered or timed
+ * through getPipeline(), e.g. an IirBaselineStage instead of the wavelet one.
+ * With a SignalQualityGate, the chunks whose raw samples cannot hold beats are not
+ * searched, and a block without any usable chunk skips the pipeline altogether.
+ * The decisions of the detector can be followed through getTrace(), off by default.
+ * With Precision.SINGLE every block is converted once to a float buffer of the engine and
+ * the whole pipeline runs in float arrays, which halves the memory it touches.
+ * An instance keeps the state of one stream, it must not be shared between threads.
+ */
+public class HrvEngine {
+
+    // # Maximum period change between chunks/segments, e=0.3s corresponds to 200bpm
+    public static final float DEFAULT_PERIOD_TOLERANCE = 0.4f;
+    // Defined such as 2*theta is the maximum deviation in a single 4secs chunk/segment
+    public static final float DEFAULT_PEAK_NEIGHBORHOOD = 0.4f;
+    public static final int DEFAULT_PEAK_WINDOW_SIZE = 11;
+    public static final int CHUNK_SECONDS = 4;
+
+    private final int blockSize;
+    private final int samplingFrequency;
+    private final int windowOverlap;
+    private final int hopSize;
+    private final int chunkSize;
+
+    private final Precision precision;
+    private final SignalPipeline pipeline;
+    private final PeakDetectionStage detector;
+    // Block converted to float, only with Precision.SINGLE
+    private final float[] floatBlock;
+
+    // Optional check of the raw chunks before the pipeline
+    private SignalQualityGate qualityGate = null;
+    private int[] chunkQuality = new int[0];
+    private int skippedChunks = 0;
+    private boolean blockSkipped = false;
+    private int outputLength = 0;
+
+    /**
+     * Default thresholds of ProcessSignals, with peak tracking between blocks.
+     */
+    public HrvEngine(int blockSize, int samplingFrequency, int windowOverlap, WaveletBaselineFilter baselineFilter) {
+        this(blockSize, samplingFrequency, windowOverlap, baselineFilter, new PeakTrackingState(),
+                DEFAULT_PERIOD_TOLERANCE, DEFAULT_PEAK_NEIGHBORHOOD, DEFAULT_PEAK_WINDOW_SIZE);
+    }
+
+    /**
+     * @param blockSize samples of every block, consecutive blocks share 2*windowOverlap samples
+     * @param baselineFilter wavelet denoising of the blocks, used only by this engine
+     * @param peakState peak tracking carried between blocks, null to start every block
+     *                  without a previous peak
+     * @param periodTolerance seconds the period of the second autocorrelation peak may differ
+     *                        from the first one (e)
+     * @param peakNeighborhood seconds around the previous peak plus the period where the next
+     *                         peak is accepted (theta)
+     * @param peakWindowSize samples of the local maximum window
+     */
+    public HrvEngine(int blockSize, int samplingFrequency, int windowOverlap, WaveletBaselineFilter baselineFilter,
+                     PeakTrackingState peakState, float periodTolerance, float peakNeighborhood, int peakWindowSize) {
+        this(blockSize, samplingFrequency, windowOverlap, baselineFilter, peakState,
+                periodTolerance, peakNeighborhood, peakWindowSize, Math.max(1, blockSize - 2*windowOverlap));
+    }
+
+    /**
+     * Engine whose consecutive blocks start hopSize samples apart, less than
+     * blockSize - 2*windowOverlap when the blocks share more than the overlap, see
+     * StreamingHrvEngine.
+     */
+    public HrvEngine(int blockSize, int samplingFrequency, int windowOverlap, WaveletBaselineFilter baselineFilter,
+                     PeakTrackingState peakState, float periodTolerance, float peakNeighborhood, int peakWindowSize,
+                     int hopSize) {
+        this(blockSize, samplingFrequency, windowOverlap, baselineFilter, peakState,
+                periodTolerance, peakNeighborhood, peakWindowSize, hopSize, Precision.DOUBLE);
+    }
+
+    /**
+     * @param precision of the whole pipeline, Precision.SINGLE converts every block to float
+     */
+    public HrvEngine(int blockSize, int samplingFrequency, int windowOverlap, WaveletBaselineFilter baselineFilter,
+                     PeakTrackingState peakState, float periodTolerance, float peakNeighborhood, int peakWindowSize,
+                     int hopSize, Precision precision) {
+        int N = baselineFilter.outputLength(blockSize);
+        if (N < 2*windowOverlap) {
+            throw new IllegalArgumentException("Signal is too short to keep a two sided window. N=" + N + ", windowOverlap=" + windowOverlap);
+        }
+        if (hopSize < 1 || hopSize > Math.max(1, blockSize - 2*windowOverlap)) {
+            throw new IllegalArgumentException("Invalid hop size " + hopSize + " for blockSize=" + blockSize + ", windowOverlap=" + windowOverlap);
+        }
+        this.blockSize = blockSize;
+        this.samplingFrequency = samplingFrequency;
+        this.windowOverlap = windowOverlap;
+        this.hopSize = hopSize;
+        this.chunkSize = CHUNK_SECONDS*samplingFrequency;
+        this.precision = precision;
+        this.floatBlock = precision == Precision.SINGLE ? new float[blockSize] : null;
+
+        this.detector = new PeakDetectionStage(samplingFrequency, windowOverlap, peakState,
+                periodTolerance, peakNeighborhood, peakWindowSize);
+        // The block is zero padded to N inside the DWT filter. Centered detrending window of
+        // Fs samples (Fs+1 when Fs is even) that shrinks at the block edges
+        this.pipeline = new SignalPipeline()
+                .add(new WaveletBaselineStage(baselineFilter))
+                .add(new DetrendStage(MovingAverageDetrender.oneSecond(samplingFrequency)))
+                .add(new AmplifyStage(samplingFrequency, windowOverlap))
+                .add(detector);
+    }
+
+    /**
+     * Finds the peaks of block[offset..offset+blockSize-1], without timestamps.
+     *
+     * @param sink receives every valid peak, its position relative to offset
+     * @return number of peaks, -1 when a stage failed
+     */
+    public int process(double[] block, int offset, PeakSink sink) {
+        return process(block, offset, null, 0, sink);
+    }
+
+    /**
+     * Finds the peaks of block[offset..offset+blockSize-1].
+     *
+     * @param timestamps timestamps[timestampOffset + i] is the timestamp in microseconds of
+     *                   block[offset + i], null when there are none
+     * @param sink receives every valid peak, its position relative to offset
+     * @return number of peaks, -1 when a stage failed
+     */
+    public int process(double[] block, int offset, long[] timestamps, int timestampOffset, PeakSink sink) {
+        detector.setOutput(sink, timestamps, timestampOffset, blockSize, hopSize);
+        try {
+            if (qualityGate != null && assessChunks(block, offset)) {
+                // No chunk can hold beats, the filters are not run
+                detector.skip(outputLength);
+                blockSkipped = true;
+                return 0;
+            }
+            blockSkipped = false;
+            if (floatBlock != null) {
+                for (int i = 0; i < blockSize; i++) {
+                    floatBlock[i] = (float) block[offset + i];
+                }
+                outputLength = pipeline.push(floatBlock, 0, blockSize);
+            } else {
+                outputLength = pipeline.push(block, offset, blockSize);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            detector.setOutput(null, null, 0, blockSize, hopSize);
+        }
+        return detector.getPeakCount();
+    }
+
+    // Gate of the raw samples of every chunk, the padding of the DWT is not part of them.
+    // Returns true when none of the chunks is usable
+    private boolean assessChunks(double[] block, int offset) {
+        outputLength = pipeline.outputLength(blockSize);
+        int chunks = chunkCount(outputLength, windowOverlap, chunkSize);
+        if (chunkQuality.length < chunks) {
+            chunkQuality = new int[chunks];
+            detector.setChunkQuality(chunkQuality);
+        }
+        skippedChunks = 0;
+        for (int n = 0; n < chunks; n++) {
+            int from = chunkStart(n, windowOverlap, chunkSize);
+            int to = Math.min(chunkEnd(n, outputLength, windowOverlap, chunkSize), blockSize);
+            chunkQuality[n] = from < to ? qualityGate.assess(block, offset + from, offset + to) : SignalQualityGate.OK;
+            if (chunkQuality[n] != SignalQualityGate.OK)
+                skippedChunks++;
+        }
+        return chunks > 0 && skippedChunks == chunks;
+    }
+
+    /**
+     * Writes the processed signal of the last block, one sample per line: the first block
+     * from its start, the next ones from windowOverlap, up to the end of the last chunk.
+     * A block skipped by the quality gate is written as zeros.
+     */
+    public void writeProcessedSignal(BufferedWriter writer, boolean firstBlock) throws IOException {
+        double[] signal = pipeline.getOutput();
+        float[] floatSignal = pipeline.getFloatOutput();
+        int chunks = chunkCount(outputLength, windowOverlap, chunkSize);
+        int startIdxOfProcessedSegments = windowOverlap;
+        if(firstBlock)
+            startIdxOfProcessedSegments = 0;
+        int endIdxOfProcessedSegments = windowOverlap + (chunks * chunkSize);
+
+        for (int i = startIdxOfProcessedSegments; i < endIdxOfProcessedSegments; i++) {
+            if (blockSkipped)
+                writer.write("0.0");
+            else if (precision == Precision.SINGLE)
+                writer.write(Float.toString(floatSignal[i]));
+            else
+                writer.write(Double.toString(signal[i]));
+            writer.newLine();
+        }
+        // Once per block, not per sample
+        writer.flush();
+    }
+
+    // Chunks of chunkSize samples after the first windowOverlap samples of a processed block
+    static int chunkCount(int length, int windowOverlap, int chunkSize) {
+        return Math.max(0, (length - 2*windowOverlap)/chunkSize);
+    }
+
+    static int chunkStart(int n, int windowOverlap, int chunkSize) {
+        return Math.max(0, windowOverlap + (n * chunkSize));
+    }
+
+    // Exclusive end of chunk n, the last sample of the block is never part of a chunk
+    static int chunkEnd(int n, int length, int windowOverlap, int chunkSize) {
+        return Math.min(windowOverlap + ((n + 1) * chunkSize), length - 1);
+    }
+
+    /**
+     * Starts a new stream in every stage, the next block has no previous peak.
+     */
+    public void reset() {
+        pipeline.reset();
+    }
+
+    /**
+     * @param qualityGate check of the raw chunks from the next block, null to search every chunk
+     */
+    public void setQualityGate(SignalQualityGate qualityGate) {
+        this.qualityGate = qualityGate;
+        this.skippedChunks = 0;
+        detector.setChunkQuality(qualityGate != null ? chunkQuality : null);
+    }
+
+    public SignalQualityGate getQualityGate() {
+        return qualityGate;
+    }
+
+    /**
+     * @return chunks of the last block rejected by the quality gate
+     */
+    public int getSkippedChunks() {
+        return skippedChunks;
+    }
+
+    /**
+     * @return true when no chunk of the last block was usable, so its processed signal was
+     *         not computed
+     */
+    public boolean isLastBlockSkipped() {
+        return blockSkipped;
+    }
+
+    /**
+     * @return stages of the engine, the PeakDetectionStage must stay the last one
+     */
+    public SignalPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return the processed signal of the last block, detrended and amplified per chunk,
+     *         unless the block was skipped. The array is reused by the next process call.
+     *         Only with Precision.DOUBLE
+     */
+    public double[] getProcessedSignal() {
+        return pipeline.getOutput();
+    }
+
+    /**
+     * @return getProcessedSignal() of an engine in Precision.SINGLE
+     */
+    public float[] getProcessedSignalSingle() {
+        return pipeline.getFloatOutput();
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getSamplingFrequency() {
+        return samplingFrequency;
+    }
+
+    public int getWindowOverlap() {
+        return windowOverlap;
+    }
+
+    /**
+     * @return samples dropped between consecutive blocks, blockSize - 2*windowOverlap unless
+     *         given to the constructor
+     */
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    public PeakTrackingState getPeakState() {
+        return detector.getPeakState();
+    }
+
+    /**
+     * @return trace of the detector decisions, its level is PeakTrace.OFF until set
+     */
+    public PeakTrace getTrace() {
+        return detector.getTrace();
+    }
+}
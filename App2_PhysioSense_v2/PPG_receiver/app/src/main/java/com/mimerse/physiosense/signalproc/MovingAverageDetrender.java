@@ -0,0 +1,186 @@
+package com.mimerse.physiosense.signalproc;
+
+/**
+ * Trend removal stage: subtracts from every sample the centered moving average of
+ * windowSize samples around it. At both ends of the signal the window shrinks to the
+ * samples that exist, e.g. the first output is x[0] minus the mean of x[0..h] with
+ * h = (windowSize-1)/2, which is what ProcessSignals always did.
+ * The average is kept as a running sum over a ring of the last windowSize samples, so
+ * the cost per sample does not depend on the window size. Samples can be pushed one at
+ * a time, across any number of blocks: every output comes h samples after its input,
+ * and flush() ends the signal. detrend() does a whole block in place with the same code.
+ * An instance keeps the state of one stream, it must not be shared between threads.
+ */
+public class MovingAverageDetrender {
+
+    // The running sum is recomputed from the ring after this many samples, so its rounding
+    // errors do not build up on long streams
+    private static final int REFRESH_INTERVAL = 1 << 16;
+
+    private final int windowSize;
+    private final int halfWindow;
+    // Last windowSize input samples, sample i is in ring[i % windowSize]
+    private final double[] ring;
+    private double sum = 0.0;
+    // Samples pushed since the last reset, and the slot of the next one
+    private long count = 0;
+    private int writeSlot = 0;
+    // Index of the oldest sample in sum, and its slot
+    private long oldest = 0;
+    private int oldestSlot = 0;
+    private int sinceRefresh = 0;
+
+    /**
+     * @param windowSize samples in the window, an even size is increased by 1 to keep the
+     *                   window centered
+     */
+    public MovingAverageDetrender(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Invalid window size " + windowSize);
+        }
+        if ((windowSize % 2) == 0) {
+            windowSize = windowSize+1;
+        }
+        this.windowSize = windowSize;
+        this.halfWindow = (windowSize-1)/2;
+        this.ring = new double[windowSize];
+    }
+
+    /**
+     * Window of 1 second for the given sampling frequency, as used by ProcessSignals.
+     */
+    public static MovingAverageDetrender oneSecond(int samplingFrequency) {
+        return new MovingAverageDetrender(samplingFrequency);
+    }
+
+    /**
+     * Starts a new signal, the next sample has a shrunk window on its left.
+     */
+    public void reset() {
+        sum = 0.0;
+        count = 0;
+        writeSlot = 0;
+        oldest = 0;
+        oldestSlot = 0;
+        sinceRefresh = 0;
+    }
+
+    /**
+     * Adds the next sample of the signal.
+     *
+     * @param out receives the detrended sample halfWindow samples before this one, if any
+     * @return number of samples written to out, 0 or 1
+     */
+    public int push(double sample, double[] out, int outIndex) {
+        if (!accept(sample))
+            return 0;
+        out[outIndex] = output(count - 1 - halfWindow);
+        return 1;
+    }
+
+    /**
+     * Ends the signal: writes the last detrended samples, whose windows shrink on the
+     * right, and resets for a new signal.
+     *
+     * @return number of samples written to out, at most halfWindow
+     */
+    public int flush(double[] out, int outIndex) {
+        int written = 0;
+        for (long center = Math.max(0, count - halfWindow); center < count; center++) {
+            drop(center - halfWindow);
+            out[outIndex + written] = output(center);
+            written++;
+        }
+        reset();
+        return written;
+    }
+
+    /**
+     * Detrends signal[0..length-1] in place, as a signal of its own (both ends shrink).
+     */
+    public void detrend(double[] signal, int length) {
+        reset();
+        int written = 0;
+        for (int i = 0; i < length; i++) {
+            // The output goes to an index that was already read
+            written += push(signal[i], signal, written);
+        }
+        flush(signal, written);
+    }
+
+    /**
+     * Single precision version of detrend(double[], int), the sum is kept in double.
+     */
+    public void detrend(float[] signal, int length) {
+        reset();
+        int written = 0;
+        for (int i = 0; i < length; i++) {
+            if (accept(signal[i])) {
+                signal[written] = (float) output(count - 1 - halfWindow);
+                written++;
+            }
+        }
+        for (long center = Math.max(0, count - halfWindow); center < count; center++) {
+            drop(center - halfWindow);
+            signal[written] = (float) output(center);
+            written++;
+        }
+        reset();
+    }
+
+    // Returns true when the sample completes the window of the sample halfWindow before it
+    private boolean accept(double sample) {
+        if (count >= windowSize) {
+            // The oldest sample is in the slot about to be written
+            sum -= ring[writeSlot];
+            oldest++;
+            oldestSlot = next(oldestSlot);
+        }
+        ring[writeSlot] = sample;
+        sum += sample;
+        writeSlot = next(writeSlot);
+        count++;
+        if (++sinceRefresh == REFRESH_INTERVAL) {
+            sinceRefresh = 0;
+            sum = 0.0;
+            for (int i = 0, slot = oldestSlot; i < count - oldest; i++, slot = next(slot)) {
+                sum += ring[slot];
+            }
+        }
+        return count > halfWindow;
+    }
+
+    // Removes the samples before first from the sum
+    private void drop(long first) {
+        while (oldest < first) {
+            sum -= ring[oldestSlot];
+            oldest++;
+            oldestSlot = next(oldestSlot);
+        }
+    }
+
+    // Detrended value of a sample still in the ring
+    private double output(long center) {
+        int slot = writeSlot - 1 - (int) (count - 1 - center);
+        if (slot < 0) {
+            slot += windowSize;
+        }
+        return ring[slot] - sum / (count - oldest);
+    }
+
+    private int next(int slot) {
+        slot++;
+        return slot == windowSize ? 0 : slot;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @return delay in samples between an input and its detrended output
+     */
+    public int getDelay() {
+        return halfWindow;
+    }
+}
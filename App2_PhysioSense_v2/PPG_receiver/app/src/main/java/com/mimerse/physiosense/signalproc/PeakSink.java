@@ -0,0 +1,22 @@
+package com.mimerse.physiosense.signalproc;
+
+/**
+ * Receives the peaks found by HrvEngine, in increasing order of position, while the
+ * block is being processed. Everything is passed as primitives, so the peaks go from the
+ * detector to the HRV calculation, the logs and the UDP output without boxing.
+ */
+public interface PeakSink {
+
+    // Timestamp of a peak whose sample has none, e.g. no timestamps were given to the engine
+    long NO_TIMESTAMP = -1;
+
+    /**
+     * @param index position of the peak in the block, counted from the offset given to
+     *              HrvEngine.process
+     * @param timestampMicros timestamp of the sample at the peak, in microseconds as sent by
+     *                        the watch, or NO_TIMESTAMP
+     * @param amplitude value of the processed signal at the peak (detrended, shifted by the
+     *                  chunk minimum and squared)
+     */
+    void onPeak(int index, long timestampMicros, double amplitude);
+}
@@ -0,0 +1,209 @@
+package com.mimerse.physiosense.signalproc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+/**
+ * Trace of the decisions of HrvEngine, for the debug log.
+ * Every event is a record of ints (event code, chunk, position, value) written to a ring
+ * of preallocated arrays, so recording never builds a string; the oldest events are
+ * overwritten when the ring is full. The text is only formatted when the trace is read,
+ * outside of the processing loops.
+ * The hot loops test ENABLED && level >= the level of the event before recording: with
+ * level OFF that is one branch per event, and with ENABLED set to false the compiler
+ * removes the calls altogether.
+ * Not thread safe, the trace must be read by the thread that processes the blocks.
+ */
+public class PeakTrace {
+
+    // Compile-time switch, false drops every trace call from the build
+    public static final boolean ENABLED = true;
+
+    // Levels
+    public static final int OFF = 0;
+    // One event per chunk: limits and whether it is valid
+    public static final int CHUNK = 1;
+    // Every candidate peak and the reason it is kept or dismissed
+    public static final int PEAK = 2;
+
+    // Event codes, value holds the number described next to each one
+    public static final int SEGMENT = 0;              // right limit of the chunk
+    public static final int VALID_SEGMENT = 1;        // fundamental period
+    public static final int INVALID_SEGMENT = 2;
+    public static final int AUTOCOR_PEAK = 3;
+    public static final int FIRST_AUTOCOR_PEAK = 4;   // candidate period
+    public static final int DISMISSED_PERIOD = 5;     // period out of 40-200 bpm
+    public static final int SECOND_AUTOCOR_PEAK = 6;  // period
+    public static final int FIRST_PEAK_REPLACED = 7;  // new candidate period
+    public static final int DISMISSED_TOLERANCE = 8;  // period too far from the candidate
+    public static final int PEAK_FOUND = 9;
+    public static final int FIRST_PEAK_SET = 10;      // right limit of the next peak
+    public static final int PEAK_ADDED = 11;          // right limit of the next peak
+    public static final int TRACKING_RESTARTED = 12;  // right limit of the next peak
+    public static final int PEAK_DISMISSED = 13;
+    public static final int SKIPPED_SEGMENT = 14;     // SignalQualityGate reason
+
+    private static final String[] NAMES = {
+            "SEGMENT", "VALID_SEGMENT", "INVALID_SEGMENT", "AUTOCOR_PEAK", "FIRST_AUTOCOR_PEAK",
+            "DISMISSED_PERIOD", "SECOND_AUTOCOR_PEAK", "FIRST_PEAK_REPLACED", "DISMISSED_TOLERANCE",
+            "PEAK_FOUND", "FIRST_PEAK_SET", "PEAK_ADDED", "TRACKING_RESTARTED", "PEAK_DISMISSED",
+            "SKIPPED_SEGMENT"
+    };
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // Read directly by the hot loops of the package
+    int level = OFF;
+
+    private final int[] codes;
+    private final int[] chunks;
+    private final int[] positions;
+    private final int[] values;
+    // Oldest event and number of events in the ring
+    private int first = 0;
+    private int size = 0;
+    private long overwritten = 0;
+
+    public PeakTrace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PeakTrace(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        codes = new int[capacity];
+        chunks = new int[capacity];
+        positions = new int[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * @param level OFF, CHUNK or PEAK
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return true when events of the given level are recorded
+     */
+    public boolean isEnabled(int level) {
+        return ENABLED && this.level >= level;
+    }
+
+    public void record(int code, int chunk, int position) {
+        record(code, chunk, position, 0);
+    }
+
+    public void record(int code, int chunk, int position, int value) {
+        int slot;
+        if (size == codes.length) {
+            slot = first;
+            first = next(first);
+            overwritten++;
+        } else {
+            slot = first + size;
+            if (slot >= codes.length)
+                slot -= codes.length;
+            size++;
+        }
+        codes[slot] = code;
+        chunks[slot] = chunk;
+        positions[slot] = position;
+        values[slot] = value;
+    }
+
+    /**
+     * @return events in the ring
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getCode(int index) {
+        return codes[slot(index)];
+    }
+
+    public int getChunk(int index) {
+        return chunks[slot(index)];
+    }
+
+    public int getPosition(int index) {
+        return positions[slot(index)];
+    }
+
+    public int getValue(int index) {
+        return values[slot(index)];
+    }
+
+    /**
+     * @return text of the event, index 0 is the oldest one in the ring
+     */
+    public String format(int index) {
+        int slot = slot(index);
+        String text = NAMES[codes[slot]] + " chunk=" + chunks[slot] + " pos=" + positions[slot];
+        switch (codes[slot]) {
+            case SEGMENT:
+                return text + " to=" + values[slot];
+            case VALID_SEGMENT:
+            case FIRST_AUTOCOR_PEAK:
+            case DISMISSED_PERIOD:
+            case SECOND_AUTOCOR_PEAK:
+            case FIRST_PEAK_REPLACED:
+            case DISMISSED_TOLERANCE:
+                return text + " Ts=" + values[slot];
+            case FIRST_PEAK_SET:
+            case PEAK_ADDED:
+            case TRACKING_RESTARTED:
+                return text + " nextLimit=" + values[slot];
+            default:
+                return text;
+        }
+    }
+
+    /**
+     * Writes the events, one per line, and empties the ring.
+     */
+    public void writeTo(BufferedWriter writer) throws IOException {
+        if (overwritten > 0) {
+            writer.write("TRACE: " + overwritten + " events overwritten");
+            writer.newLine();
+        }
+        for (int i = 0; i < size; i++) {
+            writer.write(format(i));
+            writer.newLine();
+        }
+        clear();
+    }
+
+    public void clear() {
+        first = 0;
+        size = 0;
+        overwritten = 0;
+    }
+
+    /**
+     * @return events lost since the last clear because the ring was full
+     */
+    public long getOverwritten() {
+        return overwritten;
+    }
+
+    private int slot(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Event " + index + " of " + size);
+        }
+        int slot = first + index;
+        return slot >= codes.length ? slot - codes.length : slot;
+    }
+
+    private int next(int slot) {
+        slot++;
+        return slot == codes.length ? 0 : slot;
+    }
+}
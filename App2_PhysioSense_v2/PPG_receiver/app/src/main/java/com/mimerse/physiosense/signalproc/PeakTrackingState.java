@@ -0,0 +1,56 @@
+package com.mimerse.physiosense.signalproc;
+
+/**
+ * Peak tracking state that ProcessSignals carries from one block to the next: the position
+ * of the last accepted peak and the fundamental period of the last valid chunk.
+ * Without it every block starts without a previous peak, so its first peak only sets the
+ * reference for the next one and is never reported, and a large window overlap is needed
+ * to hide it. Positions are kept relative to the start of the next block.
+ */
+public class PeakTrackingState {
+
+    private boolean hasLastPeak = false;
+    private int lastPeakPosition = 0;
+    private int fundamentalPeriod = 0;
+
+    /**
+     * Forgets the last peak, e.g. after a gap in the signal.
+     */
+    public void reset() {
+        hasLastPeak = false;
+        lastPeakPosition = 0;
+        fundamentalPeriod = 0;
+    }
+
+    /**
+     * @return true when the previous block ended with a valid chunk and a peak
+     */
+    public boolean hasLastPeak() {
+        return hasLastPeak;
+    }
+
+    /**
+     * @return position of the last peak in the coordinates of the next block, usually negative
+     */
+    public int getLastPeakPosition() {
+        return lastPeakPosition;
+    }
+
+    /**
+     * @return fundamental period in samples of the last valid chunk, 0 if there was none
+     */
+    public int getFundamentalPeriod() {
+        return fundamentalPeriod;
+    }
+
+    /**
+     * Stores the state at the end of a block.
+     *
+     * @param blockShift samples dropped from the start of the block before the next one is processed
+     */
+    void update(boolean hasLastPeak, int lastPeakPosition, int fundamentalPeriod, int blockShift) {
+        this.hasLastPeak = hasLastPeak;
+        this.lastPeakPosition = hasLastPeak ? lastPeakPosition - blockShift : 0;
+        this.fundamentalPeriod = fundamentalPeriod;
+    }
+}
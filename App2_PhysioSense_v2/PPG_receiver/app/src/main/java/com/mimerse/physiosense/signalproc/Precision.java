@@ -0,0 +1,10 @@
+package com.mimerse.physiosense.signalproc;
+
+/**
+ * Floating point precision used to process the PPG blocks.
+ * SINGLE runs the same HrvEngine pipeline in float arrays to halve the memory and bandwidth
+ * it uses. The raw PPG values are integers well inside the 24 bits of a float mantissa.
+ */
+public enum Precision {
+    DOUBLE, SINGLE
+}
@@ -0,0 +1,429 @@
+package com.mimerse.physiosense.signalproc;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Single consumer thread that runs the processing of the sample blocks off the thread that
+ * receives the samples. The blocks wait in a bounded queue and are processed one at a time,
+ * in order, so the state of the engines is only touched by the worker thread, and the
+ * results (peaks, logs) are delivered from it.
+ * When the processing falls behind and the queue is full, the FullPolicy decides: BLOCK
+ * makes submit wait for a free place, DROP_OLDEST drops the block that waited longest and
+ * COALESCE replaces the newest waiting block with the new one, e.g. for the overlapping
+ * windows of StreamingHrvEngine where the new window covers most of the replaced one.
+ * Only BLOCK lets the processing cost reach the submitting thread. The blocks that are not
+ * processed go back to the Processor through onDropped.
+ * The worker can be started again after a shutdown.
+ */
+public class ProcessingWorker<T> {
+
+    public enum FullPolicy {
+        BLOCK, DROP_OLDEST, COALESCE
+    }
+
+    public interface Processor<T> {
+        /**
+         * Processes a block, on the worker thread.
+         */
+        void process(T block) throws Exception;
+
+        /**
+         * Receives a block that will not be processed, on the thread that submitted it,
+         * cleared the queue or shut the worker down.
+         */
+        void onDropped(T block);
+    }
+
+    private final String name;
+    private final int capacity;
+    private final Processor<T> processor;
+    private volatile FullPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    private final ArrayDeque<T> queue;
+    private Thread thread = null;
+    private boolean running = false;
+    // A block taken from the queue is being processed
+    private boolean busy = false;
+
+    // Metrics, since the last resetMetrics
+    private long submitted = 0;
+    private long processed = 0;
+    private long dropped = 0;
+    private long failed = 0;
+    private int maxQueued = 0;
+    private long totalProcessingNanos = 0;
+    private long maxProcessingNanos = 0;
+
+    /**
+     * @param name name of the worker thread
+     * @param capacity blocks that can wait while another one is processed
+     */
+    public ProcessingWorker(String name, int capacity, FullPolicy policy, Processor<T> processor) {
+        if (capacity < 1 || policy == null || processor == null) {
+            throw new IllegalArgumentException("Invalid worker, capacity=" + capacity + ", policy=" + policy + ", processor=" + processor);
+        }
+        this.name = name;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.processor = processor;
+        this.queue = new ArrayDeque<T>(capacity);
+    }
+
+    /**
+     * Starts the worker thread, nothing is done when it is already running. After a
+     * shutdown, the previous thread is first waited for, so a single thread ever processes.
+     *
+     * @param timeoutMillis longest wait for the previous thread
+     * @return false when the previous thread was still running after the timeout, or the
+     *         calling thread was interrupted, and the worker was not started
+     */
+    public boolean start(long timeoutMillis) {
+        Thread previous;
+        lock.lock();
+        try {
+            if (running)
+                return true;
+            previous = thread;
+        } finally {
+            lock.unlock();
+        }
+        if (previous != null && previous != Thread.currentThread()) {
+            try {
+                previous.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (previous.isAlive())
+                return false;
+        }
+        lock.lock();
+        try {
+            if (running)
+                return true;
+            running = true;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    processBlocks();
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a block for the worker, applying the FullPolicy when the queue is full.
+     *
+     * @return false when the block was dropped: the worker is not running, or the submitting
+     *         thread was interrupted while waiting with BLOCK
+     */
+    public boolean submit(T block) {
+        T droppedBlock = null;
+        boolean queued = false;
+        lock.lock();
+        try {
+            submitted++;
+            if (running && queue.size() == capacity) {
+                if (policy == FullPolicy.DROP_OLDEST) {
+                    droppedBlock = queue.pollFirst();
+                } else if (policy == FullPolicy.COALESCE) {
+                    droppedBlock = queue.pollLast();
+                } else {
+                    try {
+                        while (running && queue.size() == capacity)
+                            notFull.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            if (running && queue.size() < capacity) {
+                queue.addLast(block);
+                queued = true;
+                if (queue.size() > maxQueued)
+                    maxQueued = queue.size();
+                notEmpty.signal();
+            }
+            if (droppedBlock != null)
+                dropped++;
+            if (!queued)
+                dropped++;
+        } finally {
+            lock.unlock();
+        }
+        // The processor gets its blocks back outside the lock
+        if (droppedBlock != null)
+            processor.onDropped(droppedBlock);
+        if (!queued)
+            processor.onDropped(block);
+        return queued;
+    }
+
+    /**
+     * Drops the blocks that wait in the queue, the block being processed is finished.
+     */
+    public void clear() {
+        ArrayDeque<T> removed;
+        lock.lock();
+        try {
+            removed = new ArrayDeque<T>(queue);
+            queue.clear();
+            dropped += removed.size();
+            notFull.signalAll();
+            if (!busy)
+                idle.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (T block : removed) {
+            processor.onDropped(block);
+        }
+    }
+
+    /**
+     * Waits until the queue is empty and no block is being processed.
+     *
+     * @return false when the timeout elapsed first
+     */
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (busy || !queue.isEmpty()) {
+                if (remaining <= 0)
+                    return false;
+                remaining = idle.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the worker thread, waiting at most timeoutMillis for it to finish.
+     *
+     * @param drain true to process the blocks in the queue first, false to drop them
+     * @return false when the thread was still running after the timeout
+     */
+    public boolean shutdown(boolean drain, long timeoutMillis) throws InterruptedException {
+        Thread worker;
+        lock.lock();
+        try {
+            running = false;
+            worker = thread;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (!drain)
+            clear();
+        if (worker == null || worker == Thread.currentThread())
+            return true;
+        worker.join(timeoutMillis);
+        return !worker.isAlive();
+    }
+
+    // Loop of the worker thread, until it is shut down and the queue is empty
+    private void processBlocks() {
+        try {
+            while (true) {
+                T block;
+                lock.lock();
+                try {
+                    while (queue.isEmpty() && running)
+                        notEmpty.await();
+                    block = queue.pollFirst();
+                    if (block == null)
+                        return;
+                    busy = true;
+                    notFull.signal();
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+
+                long start = System.nanoTime();
+                boolean ok = false;
+                try {
+                    processor.process(block);
+                    ok = true;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    lock.lock();
+                    try {
+                        busy = false;
+                        processed++;
+                        if (!ok)
+                            failed++;
+                        totalProcessingNanos += elapsed;
+                        if (elapsed > maxProcessingNanos)
+                            maxProcessingNanos = elapsed;
+                        if (queue.isEmpty())
+                            idle.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        } finally {
+            stopped();
+        }
+    }
+
+    // The worker thread ends, after a shutdown but also on an interrupt or an Error thrown by the
+    // processor: the worker stops, so submit drops the new blocks and start can run it again, and
+    // the blocks left in the queue are given back
+    private void stopped() {
+        ArrayDeque<T> removed;
+        lock.lock();
+        try {
+            running = false;
+            busy = false;
+            removed = new ArrayDeque<T>(queue);
+            queue.clear();
+            dropped += removed.size();
+            notFull.signalAll();
+            idle.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (T block : removed) {
+            processor.onDropped(block);
+        }
+    }
+
+    public void setFullPolicy(FullPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Invalid policy " + policy);
+        }
+        this.policy = policy;
+    }
+
+    public FullPolicy getFullPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return blocks waiting in the queue, without the one being processed
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSubmitted() {
+        lock.lock();
+        try {
+            return submitted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return blocks processed, including the ones whose processing threw
+     */
+    public long getProcessed() {
+        lock.lock();
+        try {
+            return processed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return blocks given back through onDropped
+     */
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFailed() {
+        lock.lock();
+        try {
+            return failed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return longest processing of a block, in nanoseconds
+     */
+    public long getMaxProcessingNanos() {
+        lock.lock();
+        try {
+            return maxProcessingNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void resetMetrics() {
+        lock.lock();
+        try {
+            submitted = 0;
+            processed = 0;
+            dropped = 0;
+            failed = 0;
+            maxQueued = queue.size();
+            totalProcessingNanos = 0;
+            maxProcessingNanos = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return name + ": submitted " + submitted + ", processed " + processed + ", dropped " + dropped + ", failed " + failed +
+                    ", queued " + queue.size() + " of " + capacity + " (max " + maxQueued + ")" +
+                    ", processing mean " + (processed == 0 ? 0 : totalProcessingNanos/processed/1000000) +
+                    " ms, max " + maxProcessingNanos/1000000 + " ms";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
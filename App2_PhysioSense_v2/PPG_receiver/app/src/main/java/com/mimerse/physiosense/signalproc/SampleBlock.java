@@ -0,0 +1,81 @@
+package com.mimerse.physiosense.signalproc;
+
+/**
+ * Block of samples handed out by SampleRingBuffer.acquireBlock: a view of the arrays of the
+ * ring, values()[getOffset() + i] and timestamps()[getOffset() + i] being sample i, that the
+ * ring does not overwrite until the block is released. The thread that acquires a block
+ * passes its ownership to the one that processes it, which releases it when done, so the
+ * samples are written once by the receiving thread and never copied.
+ * The blocks are preallocated by the ring and reused, a block must not be read after its
+ * release.
+ */
+public class SampleBlock {
+
+    private final SampleRingBuffer ring;
+    private final int index;
+
+    // Set by the ring while the block is held
+    boolean held = false;
+    int offset;
+    int length;
+    long streamPosition;
+
+    SampleBlock(SampleRingBuffer ring, int index) {
+        this.ring = ring;
+        this.index = index;
+    }
+
+    /**
+     * @return backing array of the values of the ring, read from getOffset()
+     */
+    public double[] values() {
+        return ring.values();
+    }
+
+    /**
+     * @return backing array of the timestamps of the ring, read from getOffset()
+     */
+    public long[] timestamps() {
+        return ring.timestamps();
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return timestamp of sample index of the block
+     */
+    public long getTimestamp(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + length);
+        }
+        return ring.timestamps()[offset + index];
+    }
+
+    /**
+     * @return position in the stream of the first sample, see SampleRingBuffer.getStreamPosition
+     */
+    public long getStreamPosition() {
+        return streamPosition;
+    }
+
+    /**
+     * @return number of the block in the ring, from 0 to the number of blocks - 1, e.g. to
+     *         keep the data of the processing next to the preallocated blocks
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Gives the samples back to the ring, which may overwrite them from then on.
+     */
+    public void release() {
+        ring.release(this);
+    }
+}
@@ -0,0 +1,251 @@
+package com.mimerse.physiosense.signalproc;
+
+/**
+ * Parser of the lines sent by the watches, e.g. "PPG,5962532563,23040.00,2": a type tag,
+ * the timestamp in microseconds, the value and a last field that is not used.
+ * The line is read once, in place, without splitting it into strings or matching a regex,
+ * and the numbers follow the grammar of StringUtils.isNumeric, -?\d+(\.\d+)?(E-?\d+)?.
+ * The value is converted exactly like Double.valueOf: directly when the digits and the
+ * power of ten are both exact in a double, through Double.parseDouble otherwise, which
+ * never happens with the values of the watches.
+ * One instance per stream, the results of the last line are kept in the parser.
+ */
+public class SampleLineParser {
+
+    // Types of line
+    public static final int INVALID = 0;
+    public static final int PPG = 1;
+    public static final int HR = 2;
+
+    // Largest power of ten, and integer below 2^53, that a double holds exactly
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    // Characters of a String line, as ASCII bytes
+    private byte[] buffer = new byte[64];
+
+    private int type = INVALID;
+    private boolean numeric = false;
+    private long timestamp = 0;
+    private double value = 0;
+    private long malformedLines = 0;
+
+    // Result of parseNumber
+    private long parsedLong;
+    private double parsedDouble;
+
+    /**
+     * @return type of the line, INVALID when it does not have 4 fields or the tag is not
+     *         PPG or HR
+     */
+    public int parse(String line) {
+        int length = line.length();
+        if (buffer.length < length)
+            buffer = new byte[Math.max(length, 2*buffer.length)];
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            buffer[i] = c < 0x80 ? (byte)c : (byte)0xFF;
+        }
+        return parse(buffer, 0, length);
+    }
+
+    /**
+     * Parses line[offset..offset+length-1], ASCII.
+     *
+     * @return type of the line, INVALID when it does not have 4 fields or the tag is not
+     *         PPG or HR
+     */
+    public int parse(byte[] line, int offset, int length) {
+        type = INVALID;
+        numeric = false;
+        int end = offset + length;
+        // Empty fields at the end are ignored, as String.split did, then the end of line the
+        // line usually comes with
+        while (end > offset && line[end - 1] == ',')
+            end--;
+        while (end > offset && (line[end - 1] == '\n' || line[end - 1] == '\r'))
+            end--;
+
+        int tagEnd = indexOf(line, offset, end);
+        int timestampEnd = indexOf(line, tagEnd + 1, end);
+        int valueEnd = indexOf(line, timestampEnd + 1, end);
+        // Exactly 4 fields
+        if (valueEnd >= end || indexOf(line, valueEnd + 1, end) != end) {
+            malformedLines++;
+            return INVALID;
+        }
+        if (matches(line, offset, tagEnd, 'P', 'P', 'G')) {
+            type = PPG;
+        } else if (tagEnd - offset == 2 && line[offset] == 'H' && line[offset + 1] == 'R') {
+            type = HR;
+        } else {
+            malformedLines++;
+            return INVALID;
+        }
+
+        if (parseNumber(line, tagEnd + 1, timestampEnd)) {
+            long parsedTimestamp = parsedLong;
+            if (parseNumber(line, timestampEnd + 1, valueEnd)) {
+                timestamp = parsedTimestamp;
+                value = parsedDouble;
+                numeric = true;
+            }
+        }
+        if (!numeric)
+            malformedLines++;
+        return type;
+    }
+
+    // Index of the next ',' from start, end when there is none
+    private static int indexOf(byte[] line, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == ',')
+                return i;
+        }
+        return end;
+    }
+
+    private static boolean matches(byte[] line, int start, int end, char c0, char c1, char c2) {
+        return end - start == 3 && line[start] == c0 && line[start + 1] == c1 && line[start + 2] == c2;
+    }
+
+    // -?\d+(\.\d+)?(E-?\d+)? into parsedDouble, and parsedLong truncated like (long) of the double
+    private boolean parseNumber(byte[] s, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && s[i] == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;           // significant digits kept in mantissa
+        int droppedDigits = 0;    // integer digits beyond the 18 that fit in mantissa
+        boolean inexact = false;  // digits were dropped, the mantissa is not the number
+        int integerStart = i;
+        while (i < end && isDigit(s[i])) {
+            if (digits < 18) {
+                mantissa = 10*mantissa + (s[i] - '0');
+                if (mantissa != 0)
+                    digits++;
+            } else {
+                droppedDigits++;
+                inexact = true;
+            }
+            i++;
+        }
+        if (i == integerStart)
+            return false;
+        boolean integer = true;
+        int fractionDigits = 0;
+        if (i < end && s[i] == '.') {
+            integer = false;
+            i++;
+            int fractionStart = i;
+            while (i < end && isDigit(s[i])) {
+                if (digits < 18) {
+                    mantissa = 10*mantissa + (s[i] - '0');
+                    if (mantissa != 0)
+                        digits++;
+                    fractionDigits++;
+                } else {
+                    inexact = true;
+                }
+                i++;
+            }
+            if (i == fractionStart)
+                return false;
+        }
+        int exponent = 0;
+        if (i < end && s[i] == 'E') {
+            integer = false;
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && s[i] == '-') {
+                negativeExponent = true;
+                i++;
+            }
+            int exponentStart = i;
+            while (i < end && isDigit(s[i])) {
+                if (exponent < 10000)
+                    exponent = 10*exponent + (s[i] - '0');
+                i++;
+            }
+            if (i == exponentStart)
+                return false;
+            if (negativeExponent)
+                exponent = -exponent;
+        }
+        if (i != end)
+            return false;
+
+        int power = exponent + droppedDigits - fractionDigits;
+        if (integer && !inexact) {
+            // Plain integer, exact as a long
+            parsedLong = negative ? -mantissa : mantissa;
+            parsedDouble = negative ? -(double)mantissa : (double)mantissa;
+            if (mantissa >= MAX_EXACT_MANTISSA)
+                parsedDouble = parseSlow(s, start, end);
+            return true;
+        }
+        if (!inexact && mantissa < MAX_EXACT_MANTISSA && power >= -22 && power <= 22) {
+            // Both operands are exact, so the result is rounded once, as Double.valueOf does
+            double result = power < 0 ? mantissa / POWERS_OF_TEN[-power] : mantissa * POWERS_OF_TEN[power];
+            parsedDouble = negative ? -result : result;
+        } else {
+            parsedDouble = parseSlow(s, start, end);
+        }
+        parsedLong = (long)parsedDouble;
+        return true;
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static double parseSlow(byte[] s, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char)s[i];
+        }
+        return Double.parseDouble(new String(chars));
+    }
+
+    /**
+     * @return type of the last line
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return true when the timestamp and the value of the last line are numbers
+     */
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    /**
+     * @return timestamp of the last line, in microseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @return lines that were INVALID or not numeric since the last reset
+     */
+    public long getMalformedLines() {
+        return malformedLines;
+    }
+
+    public void resetMalformedLines() {
+        malformedLines = 0;
+    }
+}
@@ -0,0 +1,233 @@
+package com.mimerse.physiosense.signalproc;
+
+/**
+ * Ring of the last samples of a stream, timestamps in microseconds and values side by side
+ * in primitive arrays, for the blocks of HrvEngine: the samples are added one by one, the
+ * block is processed straight from the arrays, and the hop is dropped from the start with
+ * the overlap left in place.
+ * Every sample is written twice, at i and i + capacity, so the samples in the ring are
+ * always contiguous in the arrays from getOffset(), whichever way the ring has wrapped:
+ * values()[getOffset() + i] and timestamps()[getOffset() + i] are sample i.
+ * To process the blocks on another thread, acquireBlock hands the oldest samples out as a
+ * SampleBlock, one of maxBlocks preallocated views of the arrays. Until the block is
+ * released, add rejects the samples that would overwrite it, so the ring must be sized for
+ * the blocks that wait to be processed plus the samples received meanwhile.
+ * Only one thread adds, discards and acquires, the blocks can be released from any thread.
+ */
+public class SampleRingBuffer {
+
+    private final int capacity;
+    private final long[] timestamps;
+    private final double[] values;
+    // Oldest sample and number of samples in the ring
+    private int head = 0;
+    private int size = 0;
+    // Stream position of the next sample, never reset so the held blocks keep their place
+    private long end = 0;
+    private long added = 0;
+    private long overwritten = 0;
+    private long rejected = 0;
+
+    private final SampleBlock[] blocks;
+    // Stream position of the oldest sample held by a block, Long.MAX_VALUE when none is held
+    private volatile long heldFrom = Long.MAX_VALUE;
+
+    public SampleRingBuffer(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * @param maxBlocks blocks that can be held at the same time
+     */
+    public SampleRingBuffer(int capacity, int maxBlocks) {
+        if (capacity < 1 || maxBlocks < 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity + " or maxBlocks " + maxBlocks);
+        }
+        this.capacity = capacity;
+        this.timestamps = new long[2*capacity];
+        this.values = new double[2*capacity];
+        this.blocks = new SampleBlock[maxBlocks];
+        for (int i = 0; i < maxBlocks; i++) {
+            blocks[i] = new SampleBlock(this, i);
+        }
+    }
+
+    /**
+     * Adds a sample after the newest one, the oldest one is overwritten when the ring is full.
+     *
+     * @return false when the sample was rejected because it would overwrite a held block
+     */
+    public boolean add(long timestamp, double value) {
+        if (end - capacity >= heldFrom) {
+            rejected++;
+            return false;
+        }
+        if (size == capacity) {
+            head = head + 1 == capacity ? 0 : head + 1;
+            size--;
+            overwritten++;
+        }
+        int slot = head + size;
+        if (slot >= capacity)
+            slot -= capacity;
+        timestamps[slot] = timestamp;
+        timestamps[slot + capacity] = timestamp;
+        values[slot] = value;
+        values[slot + capacity] = value;
+        size++;
+        end++;
+        added++;
+        return true;
+    }
+
+    /**
+     * Drops the count oldest samples, e.g. the hop between blocks. The samples held by a
+     * block stay readable through it.
+     */
+    public void discard(int count) {
+        if (count < 0 || count > size) {
+            throw new IllegalArgumentException("Cannot discard " + count + " of " + size + " samples");
+        }
+        head += count;
+        if (head >= capacity)
+            head -= capacity;
+        size -= count;
+    }
+
+    /**
+     * Empties the ring, the held blocks stay readable.
+     */
+    public void clear() {
+        discard(size);
+        added = 0;
+        overwritten = 0;
+        rejected = 0;
+    }
+
+    /**
+     * Holds the count oldest samples as a block, which stays readable in place until it is
+     * released, whatever is added or discarded meanwhile.
+     *
+     * @return null when all the blocks are held
+     */
+    public SampleBlock acquireBlock(int count) {
+        if (count < 1 || count > size) {
+            throw new IllegalArgumentException("Cannot acquire a block of " + count + " of " + size + " samples");
+        }
+        synchronized (blocks) {
+            for (int i = 0; i < blocks.length; i++) {
+                SampleBlock block = blocks[i];
+                if (!block.held) {
+                    block.held = true;
+                    block.offset = head;
+                    block.length = count;
+                    block.streamPosition = end - size;
+                    updateHeldFrom();
+                    return block;
+                }
+            }
+        }
+        return null;
+    }
+
+    void release(SampleBlock block) {
+        synchronized (blocks) {
+            if (!block.held) {
+                throw new IllegalStateException("Block " + block.getIndex() + " is not held");
+            }
+            block.held = false;
+            updateHeldFrom();
+        }
+    }
+
+    private void updateHeldFrom() {
+        long from = Long.MAX_VALUE;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i].held && blocks[i].streamPosition < from)
+                from = blocks[i].streamPosition;
+        }
+        heldFrom = from;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return index in values() and timestamps() of the oldest sample
+     */
+    public int getOffset() {
+        return head;
+    }
+
+    /**
+     * @return backing array of the values, read from getOffset(). Changes with the next add
+     */
+    public double[] values() {
+        return values;
+    }
+
+    /**
+     * @return backing array of the timestamps, read from getOffset(). Changes with the next add
+     */
+    public long[] timestamps() {
+        return timestamps;
+    }
+
+    /**
+     * @return timestamp of sample index, 0 being the oldest one
+     */
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return timestamps[head + index];
+    }
+
+    public double getValue(int index) {
+        checkIndex(index);
+        return values[head + index];
+    }
+
+    /**
+     * @return position in the stream of sample index, counted from the first sample added
+     *         to the ring
+     */
+    public long getStreamPosition(int index) {
+        checkIndex(index);
+        return end - size + index;
+    }
+
+    /**
+     * @return samples added since the last clear
+     */
+    public long getAdded() {
+        return added;
+    }
+
+    /**
+     * @return samples lost because the ring was full, since the last clear
+     */
+    public long getOverwritten() {
+        return overwritten;
+    }
+
+    /**
+     * @return samples rejected because they would overwrite a held block, since the last clear
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.mimerse.physiosense.signalproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chain of SignalStages: a batch pushed to the pipeline goes through every stage in
+ * order, the first stage reads it where it is and the others work in place on a buffer
+ * owned by the pipeline. The buffer only grows when a longer batch comes, so pushing
+ * batches of the same length does not allocate. Float batches go through the single
+ * precision version of every stage, in a float buffer of their own.
+ * Not thread safe, like the stages it holds.
+ */
+public class SignalPipeline {
+
+    private final List<SignalStage> stages = new ArrayList<SignalStage>();
+    private double[] buffer = new double[0];
+    private float[] floatBuffer = new float[0];
+    private int outputLength = 0;
+
+    /**
+     * Adds a stage at the end of the pipeline.
+     *
+     * @return this pipeline, to chain the calls
+     */
+    public SignalPipeline add(SignalStage stage) {
+        stages.add(stage);
+        return this;
+    }
+
+    public void add(int index, SignalStage stage) {
+        stages.add(index, stage);
+    }
+
+    /**
+     * Replaces the stage at index, e.g. another denoiser.
+     *
+     * @return the stage that was replaced
+     */
+    public SignalStage set(int index, SignalStage stage) {
+        return stages.set(index, stage);
+    }
+
+    public SignalStage remove(int index) {
+        return stages.remove(index);
+    }
+
+    /**
+     * @return index of the first stage of the given class, -1 if there is none
+     */
+    public int indexOf(Class<? extends SignalStage> stageClass) {
+        for (int i = 0; i < stages.size(); i++) {
+            if (stageClass.isInstance(stages.get(i)))
+                return i;
+        }
+        return -1;
+    }
+
+    public SignalStage get(int index) {
+        return stages.get(index);
+    }
+
+    public int size() {
+        return stages.size();
+    }
+
+    /**
+     * Runs batch[offset..offset+length-1] through every stage.
+     *
+     * @return number of samples of the output, see getOutput
+     * @throws Exception a stage failed, the output is not valid
+     */
+    public int push(double[] batch, int offset, int length) throws Exception {
+        int capacity = capacity(length);
+        if (buffer.length < capacity)
+            buffer = new double[capacity];
+        if (stages.isEmpty()) {
+            System.arraycopy(batch, offset, buffer, 0, length);
+            outputLength = length;
+            return length;
+        }
+        int n = stages.get(0).run(batch, offset, length, buffer);
+        for (int i = 1; i < stages.size(); i++) {
+            n = stages.get(i).run(buffer, 0, n, buffer);
+        }
+        outputLength = n;
+        return n;
+    }
+
+    /**
+     * Single precision version of push, the output is in getFloatOutput.
+     */
+    public int push(float[] batch, int offset, int length) throws Exception {
+        int capacity = capacity(length);
+        if (floatBuffer.length < capacity)
+            floatBuffer = new float[capacity];
+        if (stages.isEmpty()) {
+            System.arraycopy(batch, offset, floatBuffer, 0, length);
+            outputLength = length;
+            return length;
+        }
+        int n = stages.get(0).run(batch, offset, length, floatBuffer);
+        for (int i = 1; i < stages.size(); i++) {
+            n = stages.get(i).run(floatBuffer, 0, n, floatBuffer);
+        }
+        outputLength = n;
+        return n;
+    }
+
+    /**
+     * @return number of samples of the output for a batch of inputLength samples
+     */
+    public int outputLength(int inputLength) {
+        int length = inputLength;
+        for (int i = 0; i < stages.size(); i++) {
+            length = stages.get(i).outputLength(length);
+        }
+        return length;
+    }
+
+    // Room for the longest batch in the chain
+    private int capacity(int length) {
+        int capacity = length;
+        for (int i = 0; i < stages.size(); i++) {
+            length = stages.get(i).outputLength(length);
+            capacity = Math.max(capacity, length);
+        }
+        return capacity;
+    }
+
+    /**
+     * @return output of the last push of a double batch, reused by the next one
+     */
+    public double[] getOutput() {
+        return buffer;
+    }
+
+    /**
+     * @return output of the last push of a float batch, reused by the next one
+     */
+    public float[] getFloatOutput() {
+        return floatBuffer;
+    }
+
+    public int getOutputLength() {
+        return outputLength;
+    }
+
+    /**
+     * Starts a new stream in every stage.
+     */
+    public void reset() {
+        for (int i = 0; i < stages.size(); i++) {
+            stages.get(i).reset();
+        }
+    }
+
+    public void resetTiming() {
+        for (int i = 0; i < stages.size(); i++) {
+            stages.get(i).resetTiming();
+        }
+    }
+
+    /**
+     * @return timing of every stage, one per line
+     */
+    public String describeTiming() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < stages.size(); i++) {
+            text.append(stages.get(i)).append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -274,428 +274,43 @@ public class SignalProcessingThread extends AsyncTask<SignalProcessingThread.Par
 
     public static List<String> ProcessSignals(double[] signalToProcess, int samplingFrequency, int windowOverlap, boolean firstProcessing, BufferedWriter denoisedSignalWriter,
                                                List<String> timeSet, BufferedWriter writerPeaksAndHRV, int incomingDataCounter, int DATA_BLOCK_TO_PROCESS) {
-        // Copy of the array that contains the signal, at the end this contains the processed signal
-        double[] signal = null;
-        // Used for intermediate calculations
-        double[] tempArray = null;
         // Sampling frequency
         int Fs = samplingFrequency;
-        // Length of the signal
-        int N = 0;
-        // Number of samples to clear from the DWT
-        int filteredSamplesDWT = 32;   // 32 for 1024 samples at 50Hz
+        // Upper limit of the band removed from the DWT
+        double baselineCutoffHz = 0.78125;   // Clears 32 DWT coefficients for 1024 samples at 50Hz
 
-        // Iteration helpers
-        int leftLimit, rightLimit;
-        int peakDetLeftLim, peakDetRightLim;
-        int validRangeNextPeakLeftLim, validRangeNextPeakRightLim;
-
-
-        // Traspose and approximate the length of the signal (N) to closes power of 2 to facilitate
-        // calculation of Discrete Wavelet Transform
-
-        // XYsignal = MatrixOps.transpose(XYsignal); // Not necessary when array is populated manually
-        //XYsignal = DWT.padPow2(XYsignal);
-
-        // Create the array only in 1D to facilitate calculations
-        // Used as final processed signal
-        //double[][] processedSignal = new double[2][];
-        //processedSignal[0] = XYsignal[0]; // Time array is not going to change in the whole process
-
-        signal = signalToProcess.clone();      // Clone signal array to make the signal processing here
-        signal = DWT.padPow2(signal);
-
-        N = signal.length;
+        int N = WaveletBaselineFilter.paddedLength(signalToProcess.length);
         if(N < 2*windowOverlap)
         {
             WriteLog("ERROR: Signal is too short to keep a two sided window. N=" + N + ", windowOverlap=" + windowOverlap);
             return null;
         }
 
-
-        //System.out.println("Size signal: " + N + " |" + XYsignal[0].length + "x" + XYsignal[1].length);
-        //System.out.println("First line: " + XYsignal[0][0] + "," + XYsignal[1][0]);
-        //System.out.println("Second line: " + XYsignal[0][1] + "," + XYsignal[1][1]);
-
-        // TODO: NORMALIZE SIGNAL? Not necessary, the peak detector worked the same.
-
-        ////////////////////////
-        // Discrete Wavelet Transform.
-        // Wavelet to apply: Daubechies 4.
-        // It has length 8 samples (parameter = 8)
-        // Number of decompositions: LogBase2(N) - scale.
-        //      Here N = 1024, LogB2 is 10, hence scale=4 to make 10-4=6 decompositions.
-        ////////////////////////
-
-        Wavelet wavelet = Wavelet.Daubechies;
-        DWT.Direction direction = DWT.Direction.forward;
-        int parameter = 8;
-        int scale = 4;
-
-        tempArray = null;
-        try {
-            tempArray = DWT.transform(signal, wavelet, parameter, scale, direction);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        // Signal contains DWT
-        signal = tempArray;
-
-        //// Write file with transform
-        // Processed signal = contains DWT
-        //processedSignal[1] = tempArray;
-        //WriteFile("D:\\Ludwig\\Sideprojects\\Master Thesis - Mimerse\\Android-BT_receiver\\PPG_receiver\\math.peakdetector\\src\\main\\java\\signal_norm_fDWT_Db4_8_3",processedSignal);
-
-        ////////////////////////
-        //// Filter the first samples in the wavelet to remove frequency noise
-        // Filtering 32 samples, assuming that Fs = 50Hz.
-        //  - Setting to 0 the first 32 samples filters out the frequencies from [0Hz-0.78125Hz]
-        //  - Setting to 0 the first 16 samples filters out the frequencies from [0Hz-0.390625Hz]
-        ////////////////////////
-        for (int i = 0; i < filteredSamplesDWT; i++)
-            signal[i] = 0.0;
-
-
-        ////////////////////////
-        // Reverse DWT
-        ////////////////////////
-        direction = DWT.Direction.reverse;
-        tempArray = null;
-        try {
-            tempArray = DWT.transform(signal, wavelet, parameter, scale, direction);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        // Signal  contains inverse DWT with denoised signal
-        signal = tempArray;
-
-        //// Write file after inverse wavelet transform
-        //// Processed signal = signal after DWT denoising
-        //processedSignal[1] = signal;
-        //WriteFile("D:\\Ludwig\\Sideprojects\\Master Thesis - Mimerse\\Android-BT_receiver\\PPG_receiver\\math.peakdetector\\src\\main\\java\\signal_norm_rDWT_Db4_8_4",processedSignal);
-
-        ////////////////////////
-        //// Trend removal
-        // Finding the shor term trends using a N-tap moving average filter.
-        // N is chosen to be equal to Fs to average over 1 second
-        ////////////////////////
-
-        // Check odd number of samples to form a symmetric window
-        int windowSize = Fs;
-        if((Fs % 2) == 0) {
-            windowSize = Fs+1; //Even
-        } else {
-            windowSize = Fs; //Odd
-        }
-
-        tempArray = new double[N];
-        // Calculate simple moving average
-        for(int i=0; i<N; i++)
-        {
-            // Create a window with the number of elements remaining from the extremes of the signal
-            leftLimit  = i - ((windowSize-1)/2);
-            rightLimit = i + ((windowSize-1)/2);
-
-            if (leftLimit < 0)
-                leftLimit = 0;
-            if (rightLimit >= N)
-                rightLimit = N-1;
-
-            //System.out.println("Moving average: " + i + "[" + leftLimit + "," + rightLimit + "]");
-
-            // Double cycle to calculate average (trend) around a specific point
-            double sum = 0.0;
-            int counter = 0;
-            for(int k = leftLimit; k<=rightLimit; k++)
-            {
-                sum = sum + signal[k];
-                counter = counter + 1;
-            }
-
-            tempArray[i] = sum / counter;
-        }
-
-        // Substract trend from original signal
-        for(int i=0; i<N; i++) {
-            signal[i] = signal[i] - tempArray[i];
-        }
-
-        ////////////////////////
-        //// Peak search by chunks of 4-seconds
-        // finding fundamental frequency in each chunk using correlation.
-        // Signal is divided in 4 second segments. The peaks are amplified by substracting the chunk by its minimum and squaring the resulting segment
-        // Fs * 4 = 200. Changed to 200 because the last values of the inverse DWT generate noise that makes difficult to recognize peaks after autocorrelation.
-        // TODO: Make adjacent windows to calculate only the middle of the signal, overlapping windows between calculations.
-        ////////////////////////
-
-        int chunkSize = 4*Fs;   // 4 seconds of signal processing
-        int chunks = (int)Math.ceil((N-2*windowOverlap)/chunkSize);
-
-        double[] autocorSignal = new double[N];  // Empty array
-
-        List<Integer> validPeakPositions = new ArrayList<Integer>();
-
-        // The next peak after tau=0 determines the fundamental periodicity T.
-        // It is assumed that the heart beat is in the range 40-200bpm, 0.66Hz-3.33Hz.
-        // If the next peak of autocorrelation lies in this range and also withing a range epsilon from
-        // the fundamental period, it implies that the segment contains valid peak information.
-
-        // # Maximum period change between chunks/segments. e=0.3s corresponds to 200bpm.
-        float e = 0.4f;      // seconds
-        // Defined such as 2*theta is the maximum deviation in a single 4secs chunk/segment. th=0.2 corresponds to a max deviation of 150bpm in 4 secs
-        float theta = 0.4f;  // seconds
-
-        // Translate the previous times into samples
-        int eSamples = Math.round(e * Fs);
-        int thetaSamples = Math.round(theta * Fs);
-
-        // Peak detector variables
-        int posLastDetectedPeak = 0;
-        int peakDetWindowSize = 11;
-
-        if((peakDetWindowSize % 2) == 0) {
-            peakDetWindowSize = peakDetWindowSize+1; //Even
-        } else {
-            peakDetWindowSize = peakDetWindowSize; //Odd
-        }
-
-        // Iterate chunks
-        for (int n = 0; n<chunks; n++) {
-            //Segment limits
-            leftLimit = windowOverlap + (n * chunkSize);
-            rightLimit = windowOverlap + ((n + 1) * chunkSize);
-
-            if(leftLimit < 0)
-                leftLimit = 0;
-            if (rightLimit >= N)
-                rightLimit = N - 1;
-
-            WriteLog("\n\nSEGMENT " + n + ": From index " + leftLimit + " to " + rightLimit); //print indexes
-
-            //Calculate minimum value in the chunk
-            double minValue = 0;
-            for (int k = leftLimit; k < rightLimit; k++) {
-                if (k == leftLimit)
-                    minValue = signal[k];
-                else if (signal[k] < minValue)
-                    minValue = signal[k];
+        // Periodic DWT, and every block starts without a previous peak
+        HrvEngine engine = new HrvEngine(signalToProcess.length, Fs, windowOverlap, new WaveletBaselineFilter(Fs, baselineCutoffHz), null,
+                HrvEngine.DEFAULT_PERIOD_TOLERANCE, HrvEngine.DEFAULT_PEAK_NEIGHBORHOOD, HrvEngine.DEFAULT_PEAK_WINDOW_SIZE);
+        // Every decision of the detector goes to the log
+        engine.getTrace().setLevel(PeakTrace.PEAK);
+
+        final List<Integer> validPeakPositions = new ArrayList<Integer>();
+        int peaks = engine.process(signalToProcess, 0, new PeakSink() {
+            @Override
+            public void onPeak(int index, long timestampMicros, double amplitude) {
+                validPeakPositions.add(index);
             }
-
-            WriteLog(" - Min:" + minValue); //print indexes
-
-            //Peaks are amplified by substracting the chunk by its minimum and squaring the resulting segment.
-            for (int k = leftLimit; k < rightLimit; k++) {
-                signal[k] = Math.pow(signal[k] - minValue, 2);
-            }
-
-            // UP TO HERE: signal array contains detrended and amplified signal
-
-            //#Autocorrelation of the segment
-            int tau = 0; //Tau is the lag for autocorrelation calculation
-            double sumValue = 0; // Sum for autocorrelation
-
-            tempArray = new double[N];
-            for (int k = leftLimit; k < rightLimit; k++)
-            {
-                tau = k - leftLimit;    // But "n" moves using the indexes of the original signal, so it's corrected each cycle.
-
-                sumValue = 0;
-                for (int d = k; d<rightLimit; d++)
-                {
-                    sumValue = sumValue + (signal[d] * signal[d - tau]);
-                }
-                autocorSignal[k] = sumValue;
-            }
-
-            //////////////////
-            //#Peak detector
-            //////////////////
-
-            int firstPeakPosInChunk = 0;
-            boolean firstPeakWasFound = false;
-            int candidateChunkFundPeriod = 0;
-            int chunkFundPeriod = 0;
-
-            boolean dataSegmentIsValid = false; //When TRUE, means that the chunk contains valid information
-
-            //#FIND PEAKS IN AUTOCORRELATION FUNCTION TO GET THE FUNDAMENTAL PERIOD T
-            //Iterate chunk
-            //skip the first value because there will always be a peak in the autocorrelation with tau = 0
-            for (int k = leftLimit; k<rightLimit; k++)
-            {
-                ////Calculate limits of window for peak detector
-                peakDetLeftLim = k - ((peakDetWindowSize - 1) / 2);
-                peakDetRightLim = k + ((peakDetWindowSize - 1) / 2);
-
-                if (peakDetLeftLim < leftLimit)
-                    peakDetLeftLim = leftLimit;
-                if (peakDetRightLim >= rightLimit)
-                    peakDetRightLim = rightLimit-1;
-
-                //Find maximum in the window of autocorrelation and check if it is the same k
-                double maxValue = 0;
-                for (int i = peakDetLeftLim; i < peakDetRightLim; i++) {
-                    if (i == peakDetLeftLim)
-                        maxValue = autocorSignal[i];
-                    else if (autocorSignal[i] > maxValue)
-                        maxValue = autocorSignal[i];
-                }
-
-                double maxInRange = maxValue;
-
-                //The maximum value in the window is the one that we are analyzing
-                if (maxInRange == autocorSignal[k])
-                {
-                    //Check that the detected maximum is bigger than the window extremes
-                    if (autocorSignal[peakDetLeftLim] < autocorSignal[k] && autocorSignal[k] > autocorSignal[peakDetRightLim])
-                    {
-                        //////PEAK DETECTED !!!
-                        WriteLog("Autocor peak found in chunk=" + n + " pos=" + k);
-
-                        //FIND SEGMENT FUNDAMENTAL PERIOD:
-                        if (!firstPeakWasFound && !dataSegmentIsValid)
-                        {
-                            int temporaryPeriod = k - leftLimit;
-
-                            //A valid Heart rate is between 40 - 200 bpm, it is f between 0.66Hz - 3.33 Hz,
-                            //hence, T is between 1.5 s - 0.3 s, corresponding to samples between 75 - 15
-                            if (temporaryPeriod > 0.3*Fs && temporaryPeriod < 1.5*Fs) {
-                                firstPeakWasFound = true;
-                                firstPeakPosInChunk = k;
-
-                                candidateChunkFundPeriod = temporaryPeriod;
-
-                                WriteLog("First peak found in chunk=" + n + " pos" + k + " Ts" + candidateChunkFundPeriod);
-                            } else {
-                                WriteLog(" - Peak dismissed 1: Temp Period=" + temporaryPeriod);
-                            }
-                        }
-
-                        //Detect second peak in chnk and see if it is between range + / -epsilon
-                        else if (firstPeakWasFound && !dataSegmentIsValid) {
-                            int temporaryPeriod = k - firstPeakPosInChunk; //Calculate distance from first peak
-
-                            //A valid Heart rate is between 40 - 200 bpm, it is f between 0.66Hz - 3.33 Hz,
-                            //hence, T is between 1.5 s - 0.3 s, corresponding to samples between 75 - 15
-                            if ((temporaryPeriod > 0.3 * Fs && temporaryPeriod < 1.5 * Fs) &&
-                                    (temporaryPeriod > (candidateChunkFundPeriod - eSamples) && temporaryPeriod < (candidateChunkFundPeriod + eSamples))) {
-
-                                dataSegmentIsValid = true;
-
-                                chunkFundPeriod = candidateChunkFundPeriod;
-
-                                WriteLog("Second peak found in chunk=" + n + " pos" + k + " Ts" + temporaryPeriod);
-                                WriteLog(" || Chunk contains valid peak information!!! \n");
-
-                                break;
-                            }
-                            //In case the second peak is very close to the first one, but bigger and still between the range, consider this peak as the first one instead
-                            else if(((autocorSignal[k] > autocorSignal[firstPeakPosInChunk]) &&//But this new peak is bigger
-                                    (k - leftLimit) > 0.3 * Fs && (k - leftLimit) < 1.5 * Fs)) //and still within the range of accepted fundamental period
-                            {
-                                firstPeakPosInChunk = k;
-                                candidateChunkFundPeriod = (k - leftLimit);
-
-                                WriteLog("First peak replaced in chunk=" + n + " pos" + k + " newTs" + candidateChunkFundPeriod);
-                            }
-                            else
-                            {
-                                WriteLog(" - Peak dismissed 2: Temp Period=" + temporaryPeriod);
-                            }
-                        }
-                    }
-                }
-            }
-
-
-            //Case: FUNDAMENTAL PERIOD WAS SET AND DATA CHUNK IS VALID.Next peaks must be in neighborhood of(previous peak + fundamental period)
-            if (dataSegmentIsValid) {
-                WriteLog(" - Valid segment, fundPeriodSamples = " + chunkFundPeriod);
-
-                //neighborhood limits.[lastPeak + T - theta]
-                validRangeNextPeakLeftLim = posLastDetectedPeak + chunkFundPeriod - thetaSamples;
-                validRangeNextPeakRightLim = posLastDetectedPeak + chunkFundPeriod + thetaSamples;
-
-                for (int k = leftLimit; k < rightLimit; k++)
-                {
-                    ////Calculate limits of window for peak detector
-                    peakDetLeftLim = k - ((peakDetWindowSize - 1) / 2);
-                    peakDetRightLim = k + ((peakDetWindowSize - 1) / 2);
-
-                    if (peakDetLeftLim < leftLimit)
-                        peakDetLeftLim = leftLimit;
-                    if (peakDetRightLim >= rightLimit)
-                        peakDetRightLim = rightLimit-1;
-
-                    //////TODO PEAK DETECTOR IN SIGNAL WHEN SEGMENT IS VALID
-                    //USE MAXIMUM DETECTOR
-
-                    //Find maximum in the window of amplified signal and check if it is the same k
-                    double maxValue = 0;
-                    for (int i = peakDetLeftLim; i < peakDetRightLim; i++) {
-                        if (i == peakDetLeftLim)
-                            maxValue = signal[i];
-                        else if (signal[i] > maxValue)
-                            maxValue = signal[i];
-                    }
-
-                    double maxInRange = maxValue;
-                    //The maximum value in the window is the one that we are analyzing
-                    if (maxInRange == signal[k]) {
-                        //Check that the detected maximum is bigger that the window extremes
-                        if (signal[peakDetLeftLim] < signal[k] && signal[k] > signal[peakDetRightLim]) {
-                            //////PEAK DETECTED !!!
-                            WriteLog("Peak found in chunk=" + n + " pos=" + k);
-
-                            //There is no previous peak, or the previous segment was invalid
-                            if (posLastDetectedPeak == 0) {
-                                posLastDetectedPeak = k;
-                                validRangeNextPeakLeftLim = posLastDetectedPeak + chunkFundPeriod - thetaSamples;
-                                validRangeNextPeakRightLim = posLastDetectedPeak + chunkFundPeriod + thetaSamples;
-                                WriteLog(" - First Peak set. New limits: " + validRangeNextPeakLeftLim + "-" + validRangeNextPeakRightLim);
-                            } else if (k >= validRangeNextPeakLeftLim && k <= validRangeNextPeakRightLim) //Withing neighborhood limits
-                            {
-                                posLastDetectedPeak = k;
-                                validRangeNextPeakLeftLim = posLastDetectedPeak + chunkFundPeriod - thetaSamples;
-                                validRangeNextPeakRightLim = posLastDetectedPeak + chunkFundPeriod + thetaSamples;
-
-                                //Add new peak
-                                validPeakPositions.add(k);
-
-                                WriteLog(" - PEAK ADDED. New limits: " + validRangeNextPeakLeftLim + "-" + validRangeNextPeakRightLim);
-                            }
-                            else
-                            {
-                                WriteLog("Peak dismissed pos:" + k);
-                            }
-                        } else {
-                            WriteLog(" - Peak dismissed - Maximum but not greater than the extremes");
-                        }
-                    }
-                }
-            } else {
-                WriteLog(" - Invalid segment\n");
-                posLastDetectedPeak = 0;
-            }
-        }
+        });
+        PeakTrace trace = engine.getTrace();
+        for (int i = 0; i < trace.size(); i++)
+            WriteLog(trace.format(i));
+        if (peaks < 0)
+            return null;
 
         // WRITE DATA
         if(denoisedSignalWriter != null)
         {
             try {
-                int startIdxOfProcessedSegments = windowOverlap;
-                if(firstProcessing)
-                    startIdxOfProcessedSegments = 0;
-                int endIdxOfProcessedSegments = windowOverlap + (chunks * chunkSize);
-
-                WriteLog("Writing denoised signal in file from " + startIdxOfProcessedSegments + " to " + endIdxOfProcessedSegments);
-                for (int i = startIdxOfProcessedSegments; i < endIdxOfProcessedSegments; i++) {
-                    denoisedSignalWriter.write(Double.toString(signal[i]));
-                    denoisedSignalWriter.newLine();
-                    denoisedSignalWriter.flush();
-                }
+                WriteLog("Writing denoised signal in file");
+                engine.writeProcessedSignal(denoisedSignalWriter, firstProcessing);
             }
             catch (IOException ioe) {
                 ioe.printStackTrace();
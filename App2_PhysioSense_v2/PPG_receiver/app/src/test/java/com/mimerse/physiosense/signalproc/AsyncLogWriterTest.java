@@ -0,0 +1,113 @@
+package com.mimerse.physiosense.signalproc;
+
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncLogWriterTest {
+
+    // File of the tests, counts what the log thread does with it
+    private static class TargetWriter extends StringWriter {
+        volatile int flushes = 0;
+        volatile boolean closed = false;
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void writesTheRecordsInOrderAndClosesTheFiles() throws Exception {
+        AsyncLogWriter logWriter = new AsyncLogWriter("test-logs", 4, 10, 1000);
+        TargetWriter target = new TargetWriter();
+        BufferedWriter writer = new BufferedWriter(logWriter.open(target));
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            writer.write("line " + i);
+            writer.newLine();
+            writer.flush();
+            expected.append("line ").append(i).append(System.getProperty("line.separator"));
+        }
+        assertTrue(logWriter.shutdown(5000));
+        assertEquals(expected.toString(), target.toString());
+        assertEquals(100, logWriter.getWritten());
+        assertEquals(0, logWriter.getDropped());
+        assertTrue(target.flushes > 0);
+        assertTrue(target.closed);
+    }
+
+    @Test
+    public void closingAChannelClosesItsFileAfterItsRecords() throws Exception {
+        AsyncLogWriter logWriter = new AsyncLogWriter("test-logs");
+        TargetWriter target = new TargetWriter();
+        Writer channel = logWriter.open(target);
+        channel.write("last record");
+        channel.close();
+        assertTrue(logWriter.shutdown(5000));
+        assertEquals("last record", target.toString());
+        assertTrue(target.closed);
+    }
+
+    @Test
+    public void dropsTheRecordsOverMaxPending() throws Exception {
+        AsyncLogWriter logWriter = new AsyncLogWriter("test-logs", 1, 0, 1);
+        TargetWriter target = new TargetWriter();
+        Writer channel = logWriter.open(target);
+        int attempts = 10000;
+        for (int i = 0; i < attempts; i++)
+            channel.write("x");
+        assertTrue(logWriter.shutdown(5000));
+        assertEquals(attempts, logWriter.getWritten() + logWriter.getDropped());
+        assertEquals(logWriter.getWritten(), target.toString().length());
+    }
+
+    @Test
+    public void everyWriteRacingTheShutdownIsWrittenOrCounted() throws Exception {
+        for (int iteration = 0; iteration < 50; iteration++) {
+            AsyncLogWriter logWriter = new AsyncLogWriter("test-logs", 16, 5, 1000000);
+            TargetWriter target = new TargetWriter();
+            final Writer channel = logWriter.open(target);
+            final int[] attempts = new int[4];
+            Thread[] writers = new Thread[attempts.length];
+            for (int k = 0; k < writers.length; k++) {
+                final int index = k;
+                writers[k] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 2000; i++) {
+                            try {
+                                channel.write("x");
+                            } catch (IOException e) {
+                                // The log thread closed the channel
+                                return;
+                            }
+                            attempts[index]++;
+                        }
+                    }
+                });
+                writers[k].start();
+            }
+            Thread.sleep(iteration % 3);
+            assertTrue(logWriter.shutdown(5000));
+            int total = 0;
+            for (int k = 0; k < writers.length; k++) {
+                writers[k].join();
+                total += attempts[k];
+            }
+            assertEquals("iteration " + iteration, logWriter.getWritten(), target.toString().length());
+            assertEquals("iteration " + iteration, total, logWriter.getWritten() + logWriter.getDropped());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.mimerse.physiosense.signalproc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessingWorkerTest {
+
+    private final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<Integer> dropped = Collections.synchronizedList(new ArrayList<Integer>());
+    // Block 0 waits for the gate, so the queue fills up behind it
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch gate = new CountDownLatch(1);
+    // Thrown by block 0 after the gate, when set
+    private volatile Error failure = null;
+    private ProcessingWorker<Integer> worker;
+
+    private ProcessingWorker<Integer> startWorker(ProcessingWorker.FullPolicy policy) {
+        worker = new ProcessingWorker<Integer>("test-worker", 2, policy, new ProcessingWorker.Processor<Integer>() {
+            @Override
+            public void process(Integer block) throws Exception {
+                if (block == 0) {
+                    started.countDown();
+                    gate.await();
+                    if (failure != null)
+                        throw failure;
+                }
+                processed.add(block);
+            }
+
+            @Override
+            public void onDropped(Integer block) {
+                dropped.add(block);
+            }
+        });
+        assertTrue(worker.start(5000));
+        return worker;
+    }
+
+    // Block 0 being processed, blocks 1 and 2 waiting, then block 3 submitted to the full queue
+    private void submitToAFullQueue() throws InterruptedException {
+        assertTrue(worker.submit(0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(worker.submit(1));
+        assertTrue(worker.submit(2));
+        assertEquals(2, worker.getQueued());
+        assertTrue(worker.submit(3));
+        gate.countDown();
+        assertTrue(worker.awaitIdle(5000));
+    }
+
+    @After
+    public void shutdown() throws InterruptedException {
+        gate.countDown();
+        if (worker != null)
+            worker.shutdown(false, 5000);
+    }
+
+    @Test
+    public void dropOldestDropsTheBlockThatWaitedLongest() throws InterruptedException {
+        startWorker(ProcessingWorker.FullPolicy.DROP_OLDEST);
+        submitToAFullQueue();
+        assertEquals(Arrays.asList(0, 2, 3), processed);
+        assertEquals(Arrays.asList(1), dropped);
+        assertEquals(4, worker.getSubmitted());
+        assertEquals(3, worker.getProcessed());
+        assertEquals(1, worker.getDropped());
+    }
+
+    @Test
+    public void coalesceReplacesTheNewestWaitingBlock() throws InterruptedException {
+        startWorker(ProcessingWorker.FullPolicy.COALESCE);
+        submitToAFullQueue();
+        assertEquals(Arrays.asList(0, 1, 3), processed);
+        assertEquals(Arrays.asList(2), dropped);
+        assertEquals(1, worker.getDropped());
+    }
+
+    @Test
+    public void blockWaitsForAFreePlace() throws InterruptedException {
+        startWorker(ProcessingWorker.FullPolicy.BLOCK);
+        assertTrue(worker.submit(0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(worker.submit(1));
+        assertTrue(worker.submit(2));
+        Thread opener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                gate.countDown();
+            }
+        });
+        opener.start();
+        assertTrue(worker.submit(3));
+        assertTrue(worker.awaitIdle(5000));
+        assertEquals(Arrays.asList(0, 1, 2, 3), processed);
+        assertTrue(dropped.isEmpty());
+    }
+
+    @Test
+    public void drainingShutdownProcessesTheWaitingBlocks() throws InterruptedException {
+        startWorker(ProcessingWorker.FullPolicy.DROP_OLDEST);
+        assertTrue(worker.submit(0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(worker.submit(1));
+        gate.countDown();
+        assertTrue(worker.shutdown(true, 5000));
+        assertEquals(Arrays.asList(0, 1), processed);
+
+        assertFalse(worker.submit(2));
+        assertEquals(Arrays.asList(2), dropped);
+        assertFalse(worker.isRunning());
+
+        assertTrue(worker.start(5000));
+        assertTrue(worker.submit(4));
+        assertTrue(worker.awaitIdle(5000));
+        assertEquals(Arrays.asList(0, 1, 4), processed);
+    }
+
+    @Test
+    public void anErrorStopsTheWorkerAndGivesTheBlocksBack() throws InterruptedException {
+        startWorker(ProcessingWorker.FullPolicy.DROP_OLDEST);
+        failure = new Error("processing failed");
+        assertTrue(worker.submit(0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(worker.submit(1));
+        assertTrue(worker.submit(2));
+        gate.countDown();
+        assertTrue(worker.awaitIdle(5000));
+        assertFalse(worker.isRunning());
+        assertTrue(processed.isEmpty());
+        assertEquals(1, worker.getFailed());
+
+        // Waits for the thread that failed, which gave the waiting blocks back on its way out
+        assertTrue(worker.start(5000));
+        assertEquals(Arrays.asList(1, 2), dropped);
+        assertTrue(worker.submit(4));
+        assertTrue(worker.awaitIdle(5000));
+        assertEquals(Arrays.asList(4), processed);
+    }
+}
@@ -0,0 +1,116 @@
+package com.mimerse.physiosense.signalproc;
+
+import com.mimerse.physiosense.dwt.StringUtils;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleLineParserTest {
+
+    private final SampleLineParser parser = new SampleLineParser();
+
+    // The split and regex checks the receiver did before SampleLineParser
+    private static int referenceType(String[] fields) {
+        if (fields.length != 4)
+            return SampleLineParser.INVALID;
+        if (fields[0].equals("PPG"))
+            return SampleLineParser.PPG;
+        if (fields[0].equals("HR"))
+            return SampleLineParser.HR;
+        return SampleLineParser.INVALID;
+    }
+
+    private void assertParsedLikeSplit(String line) {
+        String[] fields = line.split(",");
+        int type = parser.parse(line);
+        assertEquals(line, referenceType(fields), type);
+        byte[] bytes = line.getBytes();
+        assertEquals(line, type, parser.parse(bytes, 0, bytes.length));
+        if (type == SampleLineParser.INVALID)
+            return;
+        boolean numeric = StringUtils.isNumeric(fields[1]) && StringUtils.isNumeric(fields[2]);
+        assertEquals(line, numeric, parser.isNumeric());
+        if (!numeric)
+            return;
+        assertEquals(line, (long) Double.parseDouble(fields[1]), parser.getTimestamp());
+        assertEquals(line, Double.doubleToLongBits(Double.valueOf(fields[2])), Double.doubleToLongBits(parser.getValue()));
+    }
+
+    @Test
+    public void parsesTheLinesOfTheWatch() {
+        assertEquals(SampleLineParser.PPG, parser.parse("PPG,5962532563,23040.00,2\n"));
+        assertTrue(parser.isNumeric());
+        assertEquals(5962532563L, parser.getTimestamp());
+        assertEquals(23040.0, parser.getValue(), 0);
+
+        assertEquals(SampleLineParser.HR, parser.parse("HR,5862882507,85.00,2"));
+        assertTrue(parser.isNumeric());
+        assertEquals(85.0, parser.getValue(), 0);
+        assertEquals(0, parser.getMalformedLines());
+    }
+
+    @Test
+    public void countsTheMalformedLines() {
+        assertEquals(SampleLineParser.INVALID, parser.parse("PPG,5962532563,23040.00"));
+        assertEquals(SampleLineParser.INVALID, parser.parse("ACC,5962532563,23040.00,2"));
+        assertEquals(SampleLineParser.PPG, parser.parse("PPG,5962532563,23O40.00,2"));
+        assertFalse(parser.isNumeric());
+        assertEquals(3, parser.getMalformedLines());
+        parser.resetMalformedLines();
+        assertEquals(0, parser.getMalformedLines());
+    }
+
+    @Test
+    public void agreesWithSplitOnEdgeCases() {
+        String[] lines = {
+                "PPG,5962532563,23040.00,2", "PPG,5962532563,23040.00,2\r\n", "PPG,5962532563,23040.00,",
+                "PPG,5962532563,23040.00,,,", "PPG,5962532563,23040.00,2,9", "PPG,,23040.00,2", "PPG,1,-0.5,2",
+                "PPG,1,1.5E-3,2", "PPG,1,1.5E3,2", "PPG,1,1.5e3,2", "PPG,1,.5,2", "PPG,1,5.,2", "PPG,-,5,2",
+                "PPG,1.9,5,2", "PPG,1,12345678901234567890.123456789012345,2", "PPG,1,4.9E-324,2",
+                "PPGX,1,5,2", "PP,1,5,2", "hr,1,5,2", ",,,", ""
+        };
+        for (String line : lines)
+            assertParsedLikeSplit(line);
+    }
+
+    @Test
+    public void agreesWithSplitOnRandomLines() {
+        Random random = new Random(5);
+        String alphabet = "0123456789.-E,PGHRx";
+        String[] tags = {"PPG", "HR", "PP", "PPGX"};
+        for (int i = 0; i < 50000; i++) {
+            String value;
+            switch (random.nextInt(5)) {
+                case 0:
+                    value = String.format(Locale.US, "%.2f", random.nextDouble()*50000);
+                    break;
+                case 1:
+                    value = Double.toString(random.nextGaussian()*Math.pow(10, random.nextInt(40) - 20));
+                    break;
+                case 2:
+                    value = Long.toString(random.nextLong() % 100000000000L);
+                    break;
+                case 3:
+                    value = random.nextInt(100) + "." + random.nextInt(100000) + "E" + (random.nextBoolean() ? "-" : "") + random.nextInt(30);
+                    break;
+                default:
+                    StringBuilder builder = new StringBuilder();
+                    int length = random.nextInt(8);
+                    for (int k = 0; k < length; k++)
+                        builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                    value = builder.toString();
+                    break;
+            }
+            String timestamp = random.nextInt(10) == 0 ? value : Long.toString(5962532563L + i*20000L);
+            String tag = tags[random.nextInt(10) == 0 ? 2 + random.nextInt(2) : random.nextInt(2)];
+            String line = tag + "," + timestamp + "," + value + "," + (random.nextInt(20) == 0 ? "" : "2")
+                    + (random.nextBoolean() ? "\n" : "") + (random.nextInt(30) == 0 ? ",9" : "");
+            assertParsedLikeSplit(line);
+        }
+    }
+}
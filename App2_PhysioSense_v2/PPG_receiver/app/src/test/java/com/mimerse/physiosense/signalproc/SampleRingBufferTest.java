@@ -0,0 +1,126 @@
+package com.mimerse.physiosense.signalproc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SampleRingBufferTest {
+
+    private static void addSamples(SampleRingBuffer ring, long from, int count) {
+        for (long position = from; position < from + count; position++)
+            assertTrue("sample " + position, ring.add(position*20000, position*0.5));
+    }
+
+    private static void assertBlock(SampleBlock block, long firstPosition) {
+        for (int i = 0; i < block.getLength(); i++) {
+            long position = firstPosition + i;
+            assertEquals(position*20000, block.getTimestamp(i));
+            assertEquals(position*20000, block.timestamps()[block.getOffset() + i]);
+            assertEquals(position*0.5, block.values()[block.getOffset() + i], 0);
+        }
+    }
+
+    @Test
+    public void keepsTheSamplesContiguousWhenItWraps() {
+        SampleRingBuffer ring = new SampleRingBuffer(10);
+        long next = 0;
+        for (int round = 0; round < 25; round++) {
+            addSamples(ring, next, 7);
+            next += 7;
+            assertEquals(7, ring.size());
+            for (int i = 0; i < ring.size(); i++) {
+                long position = next - 7 + i;
+                assertEquals(position, ring.getStreamPosition(i));
+                assertEquals(position*20000, ring.timestamps()[ring.getOffset() + i]);
+                assertEquals(position*0.5, ring.values()[ring.getOffset() + i], 0);
+            }
+            ring.discard(7);
+        }
+        assertEquals(0, ring.getOverwritten());
+    }
+
+    @Test
+    public void overwritesTheOldestSampleWhenFull() {
+        SampleRingBuffer ring = new SampleRingBuffer(8);
+        addSamples(ring, 0, 11);
+        assertTrue(ring.isFull());
+        assertEquals(3, ring.getOverwritten());
+        assertEquals(3, ring.getStreamPosition(0));
+        assertEquals(3*20000, ring.getTimestamp(0));
+    }
+
+    @Test
+    public void holdsTheBlockUntilItIsReleased() {
+        SampleRingBuffer ring = new SampleRingBuffer(8, 1);
+        addSamples(ring, 0, 6);
+        SampleBlock block = ring.acquireBlock(4);
+        assertNotNull(block);
+        assertEquals(0, block.getStreamPosition());
+        ring.discard(4);
+
+        // The free places of the ring are still written, the next one is the first sample of the block
+        addSamples(ring, 6, 2);
+        assertFalse(ring.add(8*20000, 8*0.5));
+        assertFalse(ring.add(9*20000, 9*0.5));
+        assertEquals(2, ring.getRejected());
+        assertEquals(4, ring.size());
+        assertBlock(block, 0);
+
+        // Discarding does not free the block either
+        ring.discard(4);
+        assertFalse(ring.add(8*20000, 8*0.5));
+        assertBlock(block, 0);
+
+        block.release();
+        addSamples(ring, 8, 8);
+        assertEquals(8, ring.size());
+        assertEquals(3, ring.getRejected());
+    }
+
+    @Test
+    public void handsOutEveryBlockOnce() {
+        SampleRingBuffer ring = new SampleRingBuffer(16, 2);
+        addSamples(ring, 0, 4);
+        SampleBlock first = ring.acquireBlock(4);
+        ring.discard(2);
+        addSamples(ring, 4, 2);
+        SampleBlock second = ring.acquireBlock(4);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertTrue(first != second);
+        assertNull(ring.acquireBlock(4));
+        assertBlock(first, 0);
+        assertBlock(second, 2);
+
+        first.release();
+        SampleBlock third = ring.acquireBlock(4);
+        assertTrue(third == first);
+        assertEquals(2, third.getStreamPosition());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsASecondRelease() {
+        SampleRingBuffer ring = new SampleRingBuffer(8, 1);
+        addSamples(ring, 0, 4);
+        SampleBlock block = ring.acquireBlock(4);
+        block.release();
+        block.release();
+    }
+
+    @Test
+    public void clearKeepsTheHeldBlocks() {
+        SampleRingBuffer ring = new SampleRingBuffer(8, 1);
+        addSamples(ring, 0, 8);
+        SampleBlock block = ring.acquireBlock(8);
+        ring.clear();
+        assertEquals(0, ring.size());
+        assertFalse(ring.add(0, 0));
+        assertBlock(block, 0);
+        block.release();
+        assertTrue(ring.add(0, 0));
+    }
+}
@@ -0,0 +1,64 @@
+package com.example;
+
+/**
+ * Amplifies the peaks of every chunk of the batch by substracting the chunk minimum and
+ * squaring it. The chunks are the ones of PeakDetectionStage, the overlap at both ends of
+ * the batch is left untouched.
+ */
+public class AmplifyStage extends SignalStage {
+
+    private final int windowOverlap;
+    private final int chunkSize;
+
+    public AmplifyStage(int samplingFrequency, int windowOverlap) {
+        super("amplify");
+        this.windowOverlap = windowOverlap;
+        this.chunkSize = HrvEngine.CHUNK_SECONDS*samplingFrequency;
+    }
+
+    @Override
+    protected int process(double[] in, int offset, int length, double[] out) {
+        copyInput(in, offset, length, out);
+        int chunks = HrvEngine.chunkCount(length, windowOverlap, chunkSize);
+        for (int n = 0; n < chunks; n++) {
+            int leftLimit = HrvEngine.chunkStart(n, windowOverlap, chunkSize);
+            int rightLimit = HrvEngine.chunkEnd(n, length, windowOverlap, chunkSize);
+
+            double minValue = 0;
+            for (int k = leftLimit; k < rightLimit; k++) {
+                if (k == leftLimit)
+                    minValue = out[k];
+                else if (out[k] < minValue)
+                    minValue = out[k];
+            }
+            for (int k = leftLimit; k < rightLimit; k++) {
+                out[k] = Math.pow(out[k] - minValue, 2);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    protected int process(float[] in, int offset, int length, float[] out) {
+        copyInput(in, offset, length, out);
+        int chunks = HrvEngine.chunkCount(length, windowOverlap, chunkSize);
+        for (int n = 0; n < chunks; n++) {
+            int leftLimit = HrvEngine.chunkStart(n, windowOverlap, chunkSize);
+            int rightLimit = HrvEngine.chunkEnd(n, length, windowOverlap, chunkSize);
+
+            float minValue = 0;
+            for (int k = leftLimit; k < rightLimit; k++) {
+                if (k == leftLimit)
+                    minValue = out[k];
+                else if (out[k] < minValue)
+                    minValue = out[k];
+            }
+            // Squared in float, Math.pow would go through double
+            for (int k = leftLimit; k < rightLimit; k++) {
+                float amplitude = out[k] - minValue;
+                out[k] = amplitude * amplitude;
+            }
+        }
+        return length;
+    }
+}
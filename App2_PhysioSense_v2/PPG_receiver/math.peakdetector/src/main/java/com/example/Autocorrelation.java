@@ -0,0 +1,214 @@
+package com.example;
+
+/**
+ * Autocorrelation of a segment, as used by ProcessSignals to find the fundamental period
+ * of every chunk: out[tau] = sum over d from tau to length-1 of x[d]*x[d-tau], for every
+ * lag tau from 0 to length-1 (no normalization, no circular terms).
+ * Long segments go through an FFT: the segment is zero padded to a power of 2 of at least
+ * 2*length-1 samples, so the circular correlation of the FFT equals the linear one, and
+ * the autocorrelation is the inverse transform of the power spectrum. That is
+ * O(length*log(length)) instead of O(length^2). Segments shorter than fftThreshold use the
+ * direct sum, which is faster for them, and can be limited to the lags that are used.
+ * The FFT tables and buffers are kept between calls and rebuilt only when the padded
+ * length changes, so an instance must not be shared between threads.
+ */
+public class Autocorrelation {
+
+    // Below this length the direct sum is faster, measured for 4 second chunks at 50Hz
+    public static final int DEFAULT_FFT_THRESHOLD = 256;
+
+    private final int fftThreshold;
+
+    // FFT plan for the current padded length
+    private int fftSize = 0;
+    private double[] cos = null;
+    private double[] sin = null;
+    private int[] bitReversed = null;
+    // Reused buffers
+    private double[] re = null;
+    private double[] im = null;
+
+    public Autocorrelation() {
+        this(DEFAULT_FFT_THRESHOLD);
+    }
+
+    /**
+     * @param fftThreshold segments of at least this length use the FFT, 0 to always use it,
+     *                     Integer.MAX_VALUE to always use the direct sum
+     */
+    public Autocorrelation(int fftThreshold) {
+        this.fftThreshold = fftThreshold;
+    }
+
+    /**
+     * Autocorrelation of x[offset..offset+length-1] into out[outOffset..outOffset+length-1].
+     */
+    public void compute(double[] x, int offset, int length, double[] out, int outOffset) {
+        if (length < fftThreshold) {
+            direct(x, offset, length, out, outOffset);
+            return;
+        }
+        prepare(length);
+        for (int i = 0; i < length; i++) {
+            re[i] = x[offset + i];
+        }
+        powerSpectrumAutocorrelation(length);
+        for (int tau = 0; tau < length; tau++) {
+            out[outOffset + tau] = re[tau];
+        }
+    }
+
+    /**
+     * Same as compute, when only the lags minLag to maxLag are used: a segment shorter than
+     * fftThreshold gets only those lags, the rest of out is left as it was. The FFT fills
+     * every lag, as its cost does not depend on how many are used.
+     */
+    public void compute(double[] x, int offset, int length, double[] out, int outOffset, int minLag, int maxLag) {
+        if (length < fftThreshold) {
+            direct(x, offset, length, out, outOffset, minLag, maxLag);
+            return;
+        }
+        compute(x, offset, length, out, outOffset);
+    }
+
+    /**
+     * Single precision version of compute, the FFT runs in double.
+     */
+    public void compute(float[] x, int offset, int length, float[] out, int outOffset) {
+        if (length < fftThreshold) {
+            direct(x, offset, length, out, outOffset);
+            return;
+        }
+        prepare(length);
+        for (int i = 0; i < length; i++) {
+            re[i] = x[offset + i];
+        }
+        powerSpectrumAutocorrelation(length);
+        for (int tau = 0; tau < length; tau++) {
+            out[outOffset + tau] = (float) re[tau];
+        }
+    }
+
+    /**
+     * Single precision version of the lag bounded compute.
+     */
+    public void compute(float[] x, int offset, int length, float[] out, int outOffset, int minLag, int maxLag) {
+        if (length < fftThreshold) {
+            direct(x, offset, length, out, outOffset, minLag, maxLag);
+            return;
+        }
+        compute(x, offset, length, out, outOffset);
+    }
+
+    /**
+     * The quadratic sum, the reference for compute.
+     */
+    public static void direct(double[] x, int offset, int length, double[] out, int outOffset) {
+        direct(x, offset, length, out, outOffset, 0, length - 1);
+    }
+
+    /**
+     * The quadratic sum for the lags minLag to maxLag, clipped to the segment, in
+     * O(length*(maxLag-minLag)).
+     */
+    public static void direct(double[] x, int offset, int length, double[] out, int outOffset, int minLag, int maxLag) {
+        int lastLag = Math.min(maxLag, length - 1);
+        for (int tau = Math.max(minLag, 0); tau <= lastLag; tau++) {
+            double sumValue = 0;
+            for (int d = tau; d < length; d++) {
+                sumValue = sumValue + (x[offset + d] * x[offset + d - tau]);
+            }
+            out[outOffset + tau] = sumValue;
+        }
+    }
+
+    public static void direct(float[] x, int offset, int length, float[] out, int outOffset) {
+        direct(x, offset, length, out, outOffset, 0, length - 1);
+    }
+
+    public static void direct(float[] x, int offset, int length, float[] out, int outOffset, int minLag, int maxLag) {
+        int lastLag = Math.min(maxLag, length - 1);
+        for (int tau = Math.max(minLag, 0); tau <= lastLag; tau++) {
+            float sumValue = 0;
+            for (int d = tau; d < length; d++) {
+                sumValue = sumValue + (x[offset + d] * x[offset + d - tau]);
+            }
+            out[outOffset + tau] = sumValue;
+        }
+    }
+
+    // re[0..length-1] holds the segment, leaves the autocorrelation in re[0..length-1]
+    private void powerSpectrumAutocorrelation(int length) {
+        for (int i = length; i < fftSize; i++) {
+            re[i] = 0.0;
+        }
+        for (int i = 0; i < fftSize; i++) {
+            im[i] = 0.0;
+        }
+        fft(false);
+        for (int i = 0; i < fftSize; i++) {
+            re[i] = re[i]*re[i] + im[i]*im[i];
+            im[i] = 0.0;
+        }
+        fft(true);
+        double scale = 1.0 / fftSize;
+        for (int tau = 0; tau < length; tau++) {
+            re[tau] *= scale;
+        }
+    }
+
+    private void prepare(int length) {
+        int size = WaveletBaselineFilter.paddedLength(2*length - 1);
+        if (size < 2)
+            size = 2;
+        if (size == fftSize)
+            return;
+        fftSize = size;
+        cos = new double[size/2];
+        sin = new double[size/2];
+        for (int i = 0; i < size/2; i++) {
+            cos[i] = Math.cos(2*Math.PI*i/size);
+            sin[i] = Math.sin(2*Math.PI*i/size);
+        }
+        bitReversed = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            bitReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        re = new double[size];
+        im = new double[size];
+    }
+
+    // In place iterative radix-2 FFT of re/im, unscaled; inverse uses the conjugate twiddles
+    private void fft(boolean inverse) {
+        int n = fftSize;
+        for (int i = 0; i < n; i++) {
+            int j = bitReversed[i];
+            if (j > i) {
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+        for (int half = 1; half < n; half *= 2) {
+            int step = n / (2*half);
+            for (int start = 0; start < n; start += 2*half) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k*step];
+                    double wi = inverse ? sin[k*step] : -sin[k*step];
+                    int a = start + k;
+                    int b = a + half;
+                    double tr = wr*re[b] - wi*im[b];
+                    double ti = wr*im[b] + wi*re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    public int getFftThreshold() {
+        return fftThreshold;
+    }
+}
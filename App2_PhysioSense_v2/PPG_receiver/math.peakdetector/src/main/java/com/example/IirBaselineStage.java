@@ -0,0 +1,126 @@
+package com.example;
+
+/**
+ * Cheaper replacement of WaveletBaselineStage: a second order Butterworth high pass that
+ * removes the baseline followed by a second order Butterworth low pass that removes the
+ * high frequency noise. Both are run forward and backward over the batch, so the peaks are
+ * not delayed, and start from the steady state of the first sample of each pass to limit
+ * the transient at the batch edges. The batch is not padded.
+ * Consecutive blocks overlap, so nothing is carried between batches.
+ */
+public class IirBaselineStage extends SignalStage {
+
+    private final Biquad highPass;
+    private final Biquad lowPass;
+
+    /**
+     * @param highPassHz cutoff of the baseline removal, e.g. the 0.78125 Hz of the wavelet filter
+     * @param lowPassHz cutoff of the noise removal, below samplingFrequency/2
+     */
+    public IirBaselineStage(double samplingFrequency, double highPassHz, double lowPassHz) {
+        super("iir baseline");
+        if (highPassHz <= 0 || lowPassHz <= highPassHz || lowPassHz >= samplingFrequency/2) {
+            throw new IllegalArgumentException("Invalid cutoffs " + highPassHz + " Hz - " + lowPassHz + " Hz for Fs=" + samplingFrequency);
+        }
+        this.highPass = Biquad.butterworth(samplingFrequency, highPassHz, true);
+        this.lowPass = Biquad.butterworth(samplingFrequency, lowPassHz, false);
+    }
+
+    @Override
+    protected int process(double[] in, int offset, int length, double[] out) {
+        copyInput(in, offset, length, out);
+        if (length == 0)
+            return 0;
+        highPass.filterForwardBackward(out, length);
+        lowPass.filterForwardBackward(out, length);
+        return length;
+    }
+
+    // Float samples, the filter states stay in double since the poles of the high pass are close to 1
+    @Override
+    protected int process(float[] in, int offset, int length, float[] out) {
+        copyInput(in, offset, length, out);
+        if (length == 0)
+            return 0;
+        highPass.filterForwardBackward(out, length);
+        lowPass.filterForwardBackward(out, length);
+        return length;
+    }
+
+    /**
+     * Second order section in transposed direct form II, coefficients normalized by a0.
+     */
+    private static final class Biquad {
+
+        private final double b0, b1, b2, a1, a2;
+        // Gain at 0 Hz, 1 for a low pass and 0 for a high pass
+        private final double dcGain;
+
+        private Biquad(double b0, double b1, double b2, double a0, double a1, double a2) {
+            this.b0 = b0/a0;
+            this.b1 = b1/a0;
+            this.b2 = b2/a0;
+            this.a1 = a1/a0;
+            this.a2 = a2/a0;
+            this.dcGain = (this.b0 + this.b1 + this.b2) / (1 + this.a1 + this.a2);
+        }
+
+        // Bilinear transform of the analog prototype, Q=1/sqrt(2)
+        static Biquad butterworth(double samplingFrequency, double cutoffHz, boolean highPass) {
+            double w0 = 2*Math.PI*cutoffHz/samplingFrequency;
+            double cos = Math.cos(w0);
+            double alpha = Math.sin(w0)/Math.sqrt(2);
+            if (highPass)
+                return new Biquad((1 + cos)/2, -(1 + cos), (1 + cos)/2, 1 + alpha, -2*cos, 1 - alpha);
+            return new Biquad((1 - cos)/2, 1 - cos, (1 - cos)/2, 1 + alpha, -2*cos, 1 - alpha);
+        }
+
+        void filterForwardBackward(double[] x, int length) {
+            // Forward pass, starting as if x[0] had always been the input
+            double y0 = dcGain*x[0];
+            double z1 = y0 - b0*x[0];
+            double z2 = b2*x[0] - a2*y0;
+            for (int i = 0; i < length; i++) {
+                double in = x[i];
+                double out = b0*in + z1;
+                z1 = b1*in - a1*out + z2;
+                z2 = b2*in - a2*out;
+                x[i] = out;
+            }
+            // Backward pass
+            y0 = dcGain*x[length - 1];
+            z1 = y0 - b0*x[length - 1];
+            z2 = b2*x[length - 1] - a2*y0;
+            for (int i = length - 1; i >= 0; i--) {
+                double in = x[i];
+                double out = b0*in + z1;
+                z1 = b1*in - a1*out + z2;
+                z2 = b2*in - a2*out;
+                x[i] = out;
+            }
+        }
+
+        void filterForwardBackward(float[] x, int length) {
+            double y0 = dcGain*x[0];
+            double z1 = y0 - b0*x[0];
+            double z2 = b2*x[0] - a2*y0;
+            for (int i = 0; i < length; i++) {
+                double in = x[i];
+                double out = b0*in + z1;
+                z1 = b1*in - a1*out + z2;
+                z2 = b2*in - a2*out;
+                x[i] = (float) out;
+            }
+            y0 = dcGain*x[length - 1];
+            z1 = y0 - b0*x[length - 1];
+            z2 = b2*x[length - 1] - a2*y0;
+            for (int i = length - 1; i >= 0; i--) {
+                double in = x[i];
+                double out = b0*in + z1;
+                z1 = b1*in - a1*out + z2;
+                z2 = b2*in - a2*out;
+                x[i] = (float) out;
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.example;
+
+/**
+ * Last stage of HrvEngine: per chunk of 4 seconds of the amplified signal, the
+ * autocorrelation check of the fundamental period followed by the peak search around the
+ * previous peak plus that period. The valid peaks go to the PeakSink given by setOutput,
+ * the batch itself is passed on unchanged.
+ * The stage owns the peak tracking between blocks and the trace of its decisions. Its
+ * buffers grow to the longest batch, then it does not allocate any more. Float batches
+ * (Precision.SINGLE) take the same decisions on a float autocorrelation.
+ */
+public class PeakDetectionStage extends SignalStage {
+
+    private final int samplingFrequency;
+    private final int windowOverlap;
+    private final int chunkSize;
+    private final int eSamples;
+    private final int thetaSamples;
+    private final int minAutocorLag;
+    private final int maxAutocorLag;
+
+    private final PeakTrackingState peakState;
+    private final Autocorrelation autocorrelation;
+    private final SlidingMaxPeakFinder peakFinder;
+    private final PeakTrace trace = new PeakTrace();
+
+    private double[] autocorSignal = new double[0];
+    private float[] autocorSignalFloat = new float[0];
+    private int[] peakPositions = new int[0];
+
+    // Output of the current batch, see setOutput
+    private PeakSink sink;
+    private long[] timestamps;
+    private int timestampOffset;
+    private int sampleCount;
+    private int blockShift;
+    private int peakCount = 0;
+    // SignalQualityGate reason of every chunk, null to search all of them
+    private int[] chunkQuality;
+
+    /**
+     * @param peakState peak tracking carried between blocks, null to start every block
+     *                  without a previous peak
+     * @param periodTolerance seconds the period of the second autocorrelation peak may differ
+     *                        from the first one (e)
+     * @param peakNeighborhood seconds around the previous peak plus the period where the next
+     *                         peak is accepted (theta)
+     * @param peakWindowSize samples of the local maximum window
+     */
+    public PeakDetectionStage(int samplingFrequency, int windowOverlap, PeakTrackingState peakState,
+                              float periodTolerance, float peakNeighborhood, int peakWindowSize) {
+        super("peak detection");
+        int Fs = samplingFrequency;
+        this.samplingFrequency = samplingFrequency;
+        this.windowOverlap = windowOverlap;
+        this.peakState = peakState;
+        this.chunkSize = HrvEngine.CHUNK_SECONDS*Fs;
+        this.eSamples = Math.round(periodTolerance * Fs);
+        this.thetaSamples = Math.round(peakNeighborhood * Fs);
+
+        // FFT for long chunks, direct sum for short ones
+        this.autocorrelation = new Autocorrelation();
+        this.peakFinder = new SlidingMaxPeakFinder(peakWindowSize);
+
+        // Only the lags of a valid period are used: the first autocorrelation peak is between
+        // 0.3*Fs and 1.5*Fs and the second one less than 1.5*Fs after it, plus the window of
+        // the peak finder around them
+        int halfPeakWindow = peakFinder.getWindowSize()/2;
+        this.minAutocorLag = Math.max(0, (int)Math.floor(0.3*Fs) + 1 - halfPeakWindow);
+        this.maxAutocorLag = (int)Math.ceil(3.0*Fs) + halfPeakWindow;
+    }
+
+    /**
+     * Sets where the peaks of the next batches go.
+     *
+     * @param timestamps timestamps[timestampOffset + i] is the timestamp in microseconds of
+     *                   sample i of the batch, null when there are none
+     * @param sampleCount samples of the block before any padding, the peaks after it have no
+     *                    timestamp
+     * @param blockShift samples between the start of this block and the start of the next one,
+     *                   to carry the peak tracking
+     */
+    public void setOutput(PeakSink sink, long[] timestamps, int timestampOffset, int sampleCount, int blockShift) {
+        this.sink = sink;
+        this.timestamps = timestamps;
+        this.timestampOffset = timestampOffset;
+        this.sampleCount = sampleCount;
+        this.blockShift = blockShift;
+    }
+
+    /**
+     * @param chunkQuality SignalQualityGate reason of every chunk of the next batches, the
+     *                     chunks that are not OK are invalid segments without being searched.
+     *                     null to search every chunk
+     */
+    public void setChunkQuality(int[] chunkQuality) {
+        this.chunkQuality = chunkQuality;
+    }
+
+    /**
+     * Takes a batch of length samples whose chunks were all rejected by the quality gate,
+     * without its samples: every chunk is an invalid segment, so the peak tracking is lost.
+     */
+    public void skip(int length) {
+        int chunks = HrvEngine.chunkCount(length, windowOverlap, chunkSize);
+        for (int n = 0; n < chunks; n++) {
+            int leftLimit = HrvEngine.chunkStart(n, windowOverlap, chunkSize);
+            if (PeakTrace.ENABLED && trace.level >= PeakTrace.CHUNK) {
+                trace.record(PeakTrace.SEGMENT, n, leftLimit, HrvEngine.chunkEnd(n, length, windowOverlap, chunkSize));
+                trace.record(PeakTrace.SKIPPED_SEGMENT, n, leftLimit, chunkQuality != null ? chunkQuality[n] : 0);
+            }
+        }
+        peakCount = 0;
+        if (peakState != null) {
+            int lastFundPeriod = peakState.hasLastPeak() ? peakState.getFundamentalPeriod() : 0;
+            peakState.update(false, 0, lastFundPeriod, blockShift);
+        }
+    }
+
+    @Override
+    protected int process(double[] in, int offset, int length, double[] out) {
+        copyInput(in, offset, length, out);
+        if (autocorSignal.length < length)
+            autocorSignal = new double[length];
+        detect(out, null, length);
+        return length;
+    }
+
+    @Override
+    protected int process(float[] in, int offset, int length, float[] out) {
+        copyInput(in, offset, length, out);
+        if (autocorSignalFloat.length < length)
+            autocorSignalFloat = new float[length];
+        detect(null, out, length);
+        return length;
+    }
+
+    // Peak search in signal, or in floatSignal when it is null
+    private void detect(double[] signal, float[] floatSignal, int length) {
+        if (peakPositions.length < length)
+            peakPositions = new int[length];
+
+        int Fs = samplingFrequency;
+        int leftLimit, rightLimit;
+        int validRangeNextPeakLeftLim, validRangeNextPeakRightLim;
+        int chunks = HrvEngine.chunkCount(length, windowOverlap, chunkSize);
+
+        // Peak detector variables
+        peakCount = 0;
+        int posLastDetectedPeak = 0;
+        boolean lastPeakIsKnown = false;
+        int lastFundPeriod = 0;
+        if (peakState != null && peakState.hasLastPeak()) {
+            // Last peak of the previous block, before the start of this one
+            posLastDetectedPeak = peakState.getLastPeakPosition();
+            lastPeakIsKnown = true;
+            lastFundPeriod = peakState.getFundamentalPeriod();
+        }
+
+        for (int n = 0; n<chunks; n++) {
+            leftLimit = HrvEngine.chunkStart(n, windowOverlap, chunkSize);
+            rightLimit = HrvEngine.chunkEnd(n, length, windowOverlap, chunkSize);
+
+            if (PeakTrace.ENABLED && trace.level >= PeakTrace.CHUNK)
+                trace.record(PeakTrace.SEGMENT, n, leftLimit, rightLimit);
+
+            // The raw samples of the chunk cannot hold beats
+            if (chunkQuality != null && chunkQuality[n] != SignalQualityGate.OK) {
+                if (PeakTrace.ENABLED && trace.level >= PeakTrace.CHUNK)
+                    trace.record(PeakTrace.SKIPPED_SEGMENT, n, leftLimit, chunkQuality[n]);
+                posLastDetectedPeak = 0;
+                lastPeakIsKnown = false;
+                continue;
+            }
+
+            //#Autocorrelation of the segment, autocorSignal[leftLimit + tau] holds the lag tau
+            int lastAutocorLag = Math.min(maxAutocorLag, rightLimit - leftLimit - 1);
+            if (signal != null)
+                autocorrelation.compute(signal, leftLimit, rightLimit - leftLimit, autocorSignal, leftLimit, minAutocorLag, maxAutocorLag);
+            else
+                autocorrelation.compute(floatSignal, leftLimit, rightLimit - leftLimit, autocorSignalFloat, leftLimit, minAutocorLag, maxAutocorLag);
+
+            int firstPeakPosInChunk = 0;
+            boolean firstPeakWasFound = false;
+            int candidateChunkFundPeriod = 0;
+            int chunkFundPeriod = 0;
+            boolean dataSegmentIsValid = false;
+
+            //#FIND PEAKS IN AUTOCORRELATION FUNCTION TO GET THE FUNDAMENTAL PERIOD T
+            int autocorPeaks = signal != null
+                    ? peakFinder.findPeaks(autocorSignal, leftLimit + minAutocorLag, leftLimit + lastAutocorLag + 1, peakPositions)
+                    : peakFinder.findPeaks(autocorSignalFloat, leftLimit + minAutocorLag, leftLimit + lastAutocorLag + 1, peakPositions);
+            for (int p = 0; p < autocorPeaks; p++)
+            {
+                int k = peakPositions[p];
+                if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK)
+                    trace.record(PeakTrace.AUTOCOR_PEAK, n, k);
+
+                if (!firstPeakWasFound && !dataSegmentIsValid)
+                {
+                    int temporaryPeriod = k - leftLimit;
+
+                    //A valid Heart rate is between 40 - 200 bpm, T is between 1.5 s - 0.3 s
+                    if (temporaryPeriod > 0.3*Fs && temporaryPeriod < 1.5*Fs) {
+                        firstPeakWasFound = true;
+                        firstPeakPosInChunk = k;
+                        candidateChunkFundPeriod = temporaryPeriod;
+                        if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK)
+                            trace.record(PeakTrace.FIRST_AUTOCOR_PEAK, n, k, candidateChunkFundPeriod);
+                    } else if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK) {
+                        trace.record(PeakTrace.DISMISSED_PERIOD, n, k, temporaryPeriod);
+                    }
+                }
+                else if (firstPeakWasFound && !dataSegmentIsValid) {
+                    int temporaryPeriod = k - firstPeakPosInChunk;
+
+                    if ((temporaryPeriod > 0.3 * Fs && temporaryPeriod < 1.5 * Fs) &&
+                            (temporaryPeriod > (candidateChunkFundPeriod - eSamples) && temporaryPeriod < (candidateChunkFundPeriod + eSamples))) {
+                        dataSegmentIsValid = true;
+                        chunkFundPeriod = candidateChunkFundPeriod;
+                        if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK)
+                            trace.record(PeakTrace.SECOND_AUTOCOR_PEAK, n, k, temporaryPeriod);
+                        break;
+                    }
+                    //The second peak is very close to the first one, but bigger and still between the range
+                    else if(((autocorrelationAt(signal != null, k) > autocorrelationAt(signal != null, firstPeakPosInChunk)) &&
+                            (k - leftLimit) > 0.3 * Fs && (k - leftLimit) < 1.5 * Fs))
+                    {
+                        firstPeakPosInChunk = k;
+                        candidateChunkFundPeriod = (k - leftLimit);
+                        if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK)
+                            trace.record(PeakTrace.FIRST_PEAK_REPLACED, n, k, candidateChunkFundPeriod);
+                    }
+                    else if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK)
+                    {
+                        trace.record(PeakTrace.DISMISSED_TOLERANCE, n, k, temporaryPeriod);
+                    }
+                }
+            }
+
+            //Next peaks must be in neighborhood of(previous peak + fundamental period)
+            if (dataSegmentIsValid) {
+                lastFundPeriod = chunkFundPeriod;
+                if (PeakTrace.ENABLED && trace.level >= PeakTrace.CHUNK)
+                    trace.record(PeakTrace.VALID_SEGMENT, n, leftLimit, chunkFundPeriod);
+                validRangeNextPeakLeftLim = posLastDetectedPeak + chunkFundPeriod - thetaSamples;
+                validRangeNextPeakRightLim = posLastDetectedPeak + chunkFundPeriod + thetaSamples;
+
+                int signalPeaks = signal != null
+                        ? peakFinder.findPeaks(signal, leftLimit, rightLimit, peakPositions)
+                        : peakFinder.findPeaks(floatSignal, leftLimit, rightLimit, peakPositions);
+                for (int p = 0; p < signalPeaks; p++)
+                {
+                    int k = peakPositions[p];
+                    if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK)
+                        trace.record(PeakTrace.PEAK_FOUND, n, k);
+
+                    //There is no previous peak, or the previous segment was invalid
+                    if (!lastPeakIsKnown) {
+                        lastPeakIsKnown = true;
+                        posLastDetectedPeak = k;
+                        validRangeNextPeakLeftLim = posLastDetectedPeak + chunkFundPeriod - thetaSamples;
+                        validRangeNextPeakRightLim = posLastDetectedPeak + chunkFundPeriod + thetaSamples;
+                        if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK)
+                            trace.record(PeakTrace.FIRST_PEAK_SET, n, k, validRangeNextPeakRightLim);
+                    } else if (k >= validRangeNextPeakLeftLim && k <= validRangeNextPeakRightLim)
+                    {
+                        posLastDetectedPeak = k;
+                        validRangeNextPeakLeftLim = posLastDetectedPeak + chunkFundPeriod - thetaSamples;
+                        validRangeNextPeakRightLim = posLastDetectedPeak + chunkFundPeriod + thetaSamples;
+
+                        peakCount++;
+                        // Peaks in the zero padding of the DWT have no sample
+                        long timestamp = PeakSink.NO_TIMESTAMP;
+                        if (timestamps != null && k < sampleCount)
+                            timestamp = timestamps[timestampOffset + k];
+                        if (sink != null)
+                            sink.onPeak(k, timestamp, signal != null ? signal[k] : floatSignal[k]);
+                        if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK)
+                            trace.record(PeakTrace.PEAK_ADDED, n, k, validRangeNextPeakRightLim);
+                    } else if (peakState != null && k > validRangeNextPeakRightLim) {
+                        // A carried peak never expires with the block, so restart the tracking from
+                        // this peak instead of dismissing every following one
+                        posLastDetectedPeak = k;
+                        validRangeNextPeakLeftLim = posLastDetectedPeak + chunkFundPeriod - thetaSamples;
+                        validRangeNextPeakRightLim = posLastDetectedPeak + chunkFundPeriod + thetaSamples;
+                        if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK)
+                            trace.record(PeakTrace.TRACKING_RESTARTED, n, k, validRangeNextPeakRightLim);
+                    } else if (PeakTrace.ENABLED && trace.level >= PeakTrace.PEAK) {
+                        trace.record(PeakTrace.PEAK_DISMISSED, n, k);
+                    }
+                }
+            } else {
+                if (PeakTrace.ENABLED && trace.level >= PeakTrace.CHUNK)
+                    trace.record(PeakTrace.INVALID_SEGMENT, n, leftLimit);
+                posLastDetectedPeak = 0;
+                lastPeakIsKnown = false;
+            }
+        }
+
+        if (peakState != null)
+            peakState.update(lastPeakIsKnown, posLastDetectedPeak, lastFundPeriod, blockShift);
+    }
+
+    // Lag of the autocorrelation of the last chunk, the float one is exact in double
+    private double autocorrelationAt(boolean doublePrecision, int index) {
+        return doublePrecision ? autocorSignal[index] : autocorSignalFloat[index];
+    }
+
+    /**
+     * The next block has no previous peak.
+     */
+    @Override
+    public void reset() {
+        if (peakState != null)
+            peakState.reset();
+    }
+
+    /**
+     * @return number of valid peaks of the last batch
+     */
+    public int getPeakCount() {
+        return peakCount;
+    }
+
+    public PeakTrackingState getPeakState() {
+        return peakState;
+    }
+
+    public PeakTrace getTrace() {
+        return trace;
+    }
+}
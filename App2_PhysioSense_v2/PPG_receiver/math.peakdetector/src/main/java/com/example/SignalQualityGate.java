@@ -0,0 +1,205 @@
+package com.example;
+
+/**
+ * Signal quality index of the raw PPG, checked by HrvEngine on every chunk before the
+ * expensive stages: a chunk that is flat, clipped or without a pulse amplitude (loose or
+ * off-wrist watch) cannot hold valid beats, so it is skipped as an invalid segment, and a
+ * block where every chunk is skipped does not go through the pipeline at all.
+ * The index is computed incrementally, push() is O(1) per sample: minimum, maximum and sum,
+ * samples at the extremes, and the longest run of equal consecutive samples.
+ * The reason of every skipped chunk is counted in the metrics, and recorded in the trace
+ * of the engine as PeakTrace.SKIPPED_SEGMENT.
+ * Not thread safe, one gate per engine.
+ */
+public class SignalQualityGate {
+
+    // Reasons, checked in this order
+    public static final int OK = 0;
+    // Longest run of equal samples of at least flatSamples
+    public static final int FLAT_LINE = 1;
+    // Samples at the minimum or maximum of the chunk, at least clipFraction of the chunk
+    public static final int CLIPPED = 2;
+    // Peak to peak amplitude below minAmplitude
+    public static final int LOW_AMPLITUDE = 3;
+    // Peak to peak amplitude below minPerfusion of the mean (AC/DC ratio)
+    public static final int LOW_PERFUSION = 4;
+
+    private static final String[] NAMES = {"ok", "flat line", "clipped", "low amplitude", "low perfusion"};
+
+    public static final float DEFAULT_FLAT_SECONDS = 1.0f;
+    public static final double DEFAULT_CLIP_FRACTION = 0.1;
+    public static final double DEFAULT_MIN_AMPLITUDE = 1.0;
+    public static final double DEFAULT_MIN_PERFUSION = 0.0005;
+
+    private final int flatSamples;
+    private final double clipFraction;
+    private final double minAmplitude;
+    private final double minPerfusion;
+
+    // Index of the current segment
+    private int count;
+    private double min, max, sum;
+    private int minCount, maxCount;
+    private double previous;
+    private int flatRun, longestFlatRun;
+
+    // Metrics, assessed segments per reason
+    private final long[] reasonCounts = new long[NAMES.length];
+
+    public SignalQualityGate(int samplingFrequency) {
+        this(Math.round(DEFAULT_FLAT_SECONDS*samplingFrequency), DEFAULT_CLIP_FRACTION, DEFAULT_MIN_AMPLITUDE, DEFAULT_MIN_PERFUSION);
+    }
+
+    /**
+     * @param flatSamples shortest run of equal samples of a flat line
+     * @param clipFraction fraction of the samples at the extremes of a clipped segment
+     * @param minAmplitude smallest peak to peak amplitude, in the units of the samples
+     * @param minPerfusion smallest peak to peak amplitude relative to the mean
+     */
+    public SignalQualityGate(int flatSamples, double clipFraction, double minAmplitude, double minPerfusion) {
+        if (flatSamples < 2 || clipFraction <= 0 || minAmplitude < 0 || minPerfusion < 0) {
+            throw new IllegalArgumentException("Invalid thresholds, flatSamples=" + flatSamples + ", clipFraction=" + clipFraction +
+                    ", minAmplitude=" + minAmplitude + ", minPerfusion=" + minPerfusion);
+        }
+        this.flatSamples = flatSamples;
+        this.clipFraction = clipFraction;
+        this.minAmplitude = minAmplitude;
+        this.minPerfusion = minPerfusion;
+        reset();
+    }
+
+    /**
+     * Starts a new segment.
+     */
+    public void reset() {
+        count = 0;
+        min = 0;
+        max = 0;
+        sum = 0;
+        minCount = 0;
+        maxCount = 0;
+        previous = 0;
+        flatRun = 0;
+        longestFlatRun = 0;
+    }
+
+    public void push(double sample) {
+        if (count == 0) {
+            min = sample;
+            max = sample;
+            minCount = 1;
+            maxCount = 1;
+            flatRun = 1;
+            longestFlatRun = 1;
+        } else {
+            if (sample > max) {
+                max = sample;
+                maxCount = 1;
+            } else if (sample == max) {
+                maxCount++;
+            }
+            if (sample < min) {
+                min = sample;
+                minCount = 1;
+            } else if (sample == min) {
+                minCount++;
+            }
+            flatRun = sample == previous ? flatRun + 1 : 1;
+            if (flatRun > longestFlatRun)
+                longestFlatRun = flatRun;
+        }
+        sum += sample;
+        previous = sample;
+        count++;
+    }
+
+    /**
+     * Quality of the segment pushed since the last reset, counted in the metrics.
+     *
+     * @return OK or the reason the segment cannot hold valid beats. An empty segment is OK
+     */
+    public int evaluate() {
+        int reason = OK;
+        if (count > 0) {
+            double range = max - min;
+            if (longestFlatRun >= flatSamples)
+                reason = FLAT_LINE;
+            else if (minCount + maxCount >= clipFraction*count)
+                reason = CLIPPED;
+            else if (range < minAmplitude)
+                reason = LOW_AMPLITUDE;
+            else if (range < minPerfusion*Math.abs(sum/count))
+                reason = LOW_PERFUSION;
+        }
+        reasonCounts[reason]++;
+        return reason;
+    }
+
+    /**
+     * Quality of x[from..to-1] as a new segment.
+     */
+    public int assess(double[] x, int from, int to) {
+        reset();
+        for (int i = from; i < to; i++) {
+            push(x[i]);
+        }
+        return evaluate();
+    }
+
+    /**
+     * @return peak to peak amplitude of the current segment
+     */
+    public double getRange() {
+        return max - min;
+    }
+
+    /**
+     * @return peak to peak amplitude of the current segment relative to its mean
+     */
+    public double getPerfusion() {
+        return count == 0 || sum == 0 ? 0 : (max - min) / Math.abs(sum/count);
+    }
+
+    public int getLongestFlatRun() {
+        return longestFlatRun;
+    }
+
+    /**
+     * @return segments assessed with the given reason since the last resetMetrics, OK
+     *         for the ones that were kept
+     */
+    public long getCount(int reason) {
+        return reasonCounts[reason];
+    }
+
+    public long getAssessed() {
+        long total = 0;
+        for (int i = 0; i < reasonCounts.length; i++) {
+            total += reasonCounts[i];
+        }
+        return total;
+    }
+
+    public long getSkipped() {
+        return getAssessed() - reasonCounts[OK];
+    }
+
+    public void resetMetrics() {
+        for (int i = 0; i < reasonCounts.length; i++) {
+            reasonCounts[i] = 0;
+        }
+    }
+
+    public static String reasonName(int reason) {
+        return NAMES[reason];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("skipped ").append(getSkipped()).append(" of ").append(getAssessed()).append(" chunks");
+        for (int i = 1; i < reasonCounts.length; i++) {
+            text.append(", ").append(NAMES[i]).append('=').append(reasonCounts[i]);
+        }
+        return text.toString();
+    }
+}
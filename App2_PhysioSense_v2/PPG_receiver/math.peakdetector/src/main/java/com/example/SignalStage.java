@@ -0,0 +1,136 @@
+package com.example;
+
+/**
+ * One step of the PPG processing of HrvEngine (baseline removal, detrending,
+ * amplification, peak detection...), chained by SignalPipeline.
+ * A stage receives a batch of samples and writes its output batch, both as primitive
+ * arrays, and owns whatever state it keeps between batches, so stages can be swapped,
+ * reordered or replaced by one that fuses several of them without touching the others.
+ * Every stage has a float version of process too, run by the pipelines of HrvEngine in
+ * Precision.SINGLE.
+ * Every call through run() is timed, which gives the cost of each stage on the device.
+ */
+public abstract class SignalStage {
+
+    private final String name;
+
+    // Timing of the calls through run()
+    private long calls = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+    private long lastNanos = 0;
+
+    protected SignalStage(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Processes in[offset..offset+length-1] into out[0..]. out is in itself when offset is
+     * 0, so every stage must work in place.
+     *
+     * @param out at least outputLength(length) samples
+     * @return number of samples written to out
+     * @throws Exception the batch cannot be processed
+     */
+    protected abstract int process(double[] in, int offset, int length, double[] out) throws Exception;
+
+    /**
+     * Single precision version of process, on float arrays, with the same contract.
+     */
+    protected abstract int process(float[] in, int offset, int length, float[] out) throws Exception;
+
+    /**
+     * @return number of samples the stage writes for a batch of inputLength samples
+     */
+    public int outputLength(int inputLength) {
+        return inputLength;
+    }
+
+    /**
+     * Starts a new stream, the state kept between batches is dropped. Nothing by default.
+     */
+    public void reset() {
+    }
+
+    /**
+     * Timed call to process.
+     */
+    public final int run(double[] in, int offset, int length, double[] out) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return process(in, offset, length, out);
+        } finally {
+            addTiming(start);
+        }
+    }
+
+    /**
+     * Timed call to the single precision process.
+     */
+    public final int run(float[] in, int offset, int length, float[] out) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return process(in, offset, length, out);
+        } finally {
+            addTiming(start);
+        }
+    }
+
+    private void addTiming(long start) {
+        lastNanos = System.nanoTime() - start;
+        totalNanos += lastNanos;
+        if (lastNanos > maxNanos)
+            maxNanos = lastNanos;
+        calls++;
+    }
+
+    // Copies the input to the output when the stage is not called in place
+    protected static void copyInput(double[] in, int offset, int length, double[] out) {
+        if (in != out || offset != 0)
+            System.arraycopy(in, offset, out, 0, length);
+    }
+
+    protected static void copyInput(float[] in, int offset, int length, float[] out) {
+        if (in != out || offset != 0)
+            System.arraycopy(in, offset, out, 0, length);
+    }
+
+    public void resetTiming() {
+        calls = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+        lastNanos = 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * @return mean time of a call in microseconds, 0 before the first one
+     */
+    public double getMeanMicros() {
+        return calls == 0 ? 0.0 : totalNanos / (1000.0 * calls);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": calls=" + calls + " mean=" + getMeanMicros() + "us max=" + (maxNanos / 1000.0) + "us";
+    }
+}
@@ -0,0 +1,99 @@
+package com.example;
+
+/**
+ * Local maximum detector of ProcessSignals, in O(N) for any window size.
+ * For every k of a segment [left, right) the window is [lo, hi] with
+ * lo = max(k - h, left), hi = min(k + h, right - 1) and h = (windowSize-1)/2, and k is
+ * a peak when x[k] equals the maximum of x[lo..hi-1] (hi itself is not included, and an
+ * empty range has maximum 0) and x[lo] < x[k] > x[hi].
+ * Both ends of the window only move forward with k, so the maximum is kept with a
+ * monotonic deque of indices (decreasing values) in a primitive array: every index is
+ * added and removed once, instead of rescanning the window for every sample.
+ * The deque buffer is reused between calls, so an instance must not be shared between
+ * threads.
+ */
+public class SlidingMaxPeakFinder {
+
+    private final int windowSize;
+    private final int halfWindow;
+    private int[] deque = new int[0];
+
+    /**
+     * @param windowSize samples in the window, an even size is increased by 1 to keep the
+     *                   window centered
+     */
+    public SlidingMaxPeakFinder(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Invalid window size " + windowSize);
+        }
+        if ((windowSize % 2) == 0) {
+            windowSize = windowSize+1;
+        }
+        this.windowSize = windowSize;
+        this.halfWindow = (windowSize-1)/2;
+    }
+
+    /**
+     * Finds the peaks of x[left..right-1].
+     *
+     * @param peaks receives the positions of the peaks in increasing order, at least
+     *              right - left long
+     * @return number of peaks
+     */
+    public int findPeaks(double[] x, int left, int right, int[] peaks) {
+        prepare(right - left);
+        int head = 0, tail = 0;   // deque[head..tail-1]
+        int next = left;          // next index to add to the deque
+        int count = 0;
+        for (int k = left; k < right; k++) {
+            int lo = Math.max(k - halfWindow, left);
+            int hi = Math.min(k + halfWindow, right - 1);
+            while (next < hi) {
+                while (tail > head && x[deque[tail-1]] <= x[next])
+                    tail--;
+                deque[tail++] = next++;
+            }
+            while (tail > head && deque[head] < lo)
+                head++;
+            double maxValue = tail > head ? x[deque[head]] : 0;
+            if (maxValue == x[k] && x[lo] < x[k] && x[k] > x[hi])
+                peaks[count++] = k;
+        }
+        return count;
+    }
+
+    /**
+     * Single precision version of findPeaks.
+     */
+    public int findPeaks(float[] x, int left, int right, int[] peaks) {
+        prepare(right - left);
+        int head = 0, tail = 0;
+        int next = left;
+        int count = 0;
+        for (int k = left; k < right; k++) {
+            int lo = Math.max(k - halfWindow, left);
+            int hi = Math.min(k + halfWindow, right - 1);
+            while (next < hi) {
+                while (tail > head && x[deque[tail-1]] <= x[next])
+                    tail--;
+                deque[tail++] = next++;
+            }
+            while (tail > head && deque[head] < lo)
+                head++;
+            float maxValue = tail > head ? x[deque[head]] : 0;
+            if (maxValue == x[k] && x[lo] < x[k] && x[k] > x[hi])
+                peaks[count++] = k;
+        }
+        return count;
+    }
+
+    private void prepare(int length) {
+        // Every index enters the deque once, so tail never passes the segment length
+        if (deque.length < length)
+            deque = new int[length];
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+}
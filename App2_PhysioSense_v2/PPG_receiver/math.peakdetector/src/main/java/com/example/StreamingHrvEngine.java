@@ -0,0 +1,137 @@
+package com.example;
+
+/**
+ * Low latency mode of HrvEngine: instead of waiting for a full block of 1024 samples
+ * (about 20 seconds), a short window of 2*guard samples plus a few chunks of 4 seconds is
+ * processed every hopSize samples. Only the chunks are searched, the guard at both ends
+ * keeps the peaks away from the filter edges, so a beat is reported at most
+ * guard + hopSize - 1 samples after its sample arrived (just under 2 seconds with the
+ * defaults). A shorter hop lowers the latency, but the first window that sees a beat
+ * places it closer to its guard, so less accurately.
+ * The peak tracking is carried from one window to the next one, and since consecutive
+ * windows share most of their samples the peaks that were already reported are skipped:
+ * every beat reaches the sink once, in increasing order. A beat the tracking only accepts
+ * in a later window is still reported then, late, rather than lost.
+ * The block mode of HrvEngine is kept for offline comparisons.
+ * An instance keeps the state of one stream, it must not be shared between threads.
+ */
+public class StreamingHrvEngine {
+
+    public static final int DEFAULT_CHUNKS_PER_WINDOW = 2;
+    public static final float DEFAULT_GUARD_SECONDS = 1.0f;
+    public static final float DEFAULT_HOP_SECONDS = 1.0f;
+
+    private final int windowSize;
+    private final int hopSize;
+    private final int guardSize;
+    // Below the shortest valid period of 0.3 seconds, a closer peak is the same beat found again
+    private final int minPeakDistance;
+
+    private final HrvEngine engine;
+
+    // Stream position of the first sample of the next window
+    private long windowStart = 0;
+    private boolean peakWasReported = false;
+    private long lastReportedPeak = 0;
+    private PeakSink output;
+    private int reportedPeaks;
+
+    private final PeakSink newPeakFilter = new PeakSink() {
+        @Override
+        public void onPeak(int index, long timestampMicros, double amplitude) {
+            long position = windowStart + index;
+            if (!peakWasReported || position - lastReportedPeak > minPeakDistance) {
+                peakWasReported = true;
+                lastReportedPeak = position;
+                reportedPeaks++;
+                output.onPeak(index, timestampMicros, amplitude);
+            }
+        }
+    };
+
+    /**
+     * Default window of 2 chunks, 1 second of guard and a hop of 1 second.
+     *
+     * @param baselineFilter denoising of the windows, used only by this engine. Transform.UNDECIMATED
+     *                       with the symmetric boundary avoids the zero padding of the window
+     */
+    public StreamingHrvEngine(int samplingFrequency, WaveletBaselineFilter baselineFilter) {
+        this(samplingFrequency, baselineFilter, DEFAULT_CHUNKS_PER_WINDOW,
+                Math.round(DEFAULT_GUARD_SECONDS*samplingFrequency), Math.round(DEFAULT_HOP_SECONDS*samplingFrequency));
+    }
+
+    /**
+     * @param chunksPerWindow chunks of 4 seconds searched in every window
+     * @param guardSize samples at both ends of the window that are not searched
+     * @param hopSize samples between consecutive windows, at most chunksPerWindow chunks
+     */
+    public StreamingHrvEngine(int samplingFrequency, WaveletBaselineFilter baselineFilter, int chunksPerWindow,
+                              int guardSize, int hopSize) {
+        if (chunksPerWindow < 1 || guardSize < 0) {
+            throw new IllegalArgumentException("Invalid window, chunks=" + chunksPerWindow + ", guard=" + guardSize);
+        }
+        this.windowSize = 2*guardSize + chunksPerWindow*HrvEngine.CHUNK_SECONDS*samplingFrequency;
+        this.hopSize = hopSize;
+        this.guardSize = guardSize;
+        this.minPeakDistance = (int)Math.floor(0.3*samplingFrequency);
+        this.engine = new HrvEngine(windowSize, samplingFrequency, guardSize, baselineFilter, new PeakTrackingState(),
+                HrvEngine.DEFAULT_PERIOD_TOLERANCE, HrvEngine.DEFAULT_PEAK_NEIGHBORHOOD, HrvEngine.DEFAULT_PEAK_WINDOW_SIZE,
+                hopSize);
+    }
+
+    /**
+     * Finds the new peaks of window[offset..offset+windowSize-1]. Every window must start
+     * hopSize samples after the previous one.
+     *
+     * @param timestamps timestamps[timestampOffset + i] is the timestamp in microseconds of
+     *                   window[offset + i], null when there are none
+     * @param sink receives the peaks that were not reported by the previous windows, their
+     *             position relative to offset
+     * @return number of new peaks, -1 when the processing failed
+     */
+    public int process(double[] window, int offset, long[] timestamps, int timestampOffset, PeakSink sink) {
+        output = sink;
+        reportedPeaks = 0;
+        int result = engine.process(window, offset, timestamps, timestampOffset, newPeakFilter);
+        output = null;
+        windowStart += hopSize;
+        return result < 0 ? -1 : reportedPeaks;
+    }
+
+    /**
+     * Starts a new stream, e.g. after a gap in the signal.
+     */
+    public void reset() {
+        engine.reset();
+        windowStart = 0;
+        peakWasReported = false;
+        lastReportedPeak = 0;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    public int getGuardSize() {
+        return guardSize;
+    }
+
+    /**
+     * @return maximum samples between the arrival of a beat and its report, not counting
+     *         the processing time
+     */
+    public int getMaxLatency() {
+        return guardSize + hopSize - 1;
+    }
+
+    /**
+     * @return the engine that processes every window, for its trace and its stages
+     */
+    public HrvEngine getEngine() {
+        return engine;
+    }
+}
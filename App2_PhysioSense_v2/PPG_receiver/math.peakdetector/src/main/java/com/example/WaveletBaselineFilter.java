@@ -0,0 +1,248 @@
+package com.example;
+
+import java.util.Arrays;
+
+import dwt.DWT;
+import dwt.DwtPlan;
+import dwt.DwtWorkspace;
+import dwt.ModwtPlan;
+import dwt.OrthogonalFilters;
+import dwt.Wavelet;
+
+/**
+ * Denoising stage that removes the low frequency baseline of a PPG block by
+ * dropping the approximation band of its wavelet decomposition.
+ * The cutoff is given in Hz and converted to the number of approximation
+ * coefficients for the length of every block, so the same filter works for
+ * any block size and sampling frequency.
+ * Only the approximation path of the DWT is computed (see DwtPlan.removeApproximation),
+ * which takes about half the time of a full forward and inverse transform.
+ * With DWT.Boundary.symmetric the block is mirrored at both edges before the transform,
+ * which removes the wrap-around artefacts of the periodic DWT near the block edges.
+ * The mirrored margins only need to cover the support of the approximation filter, about
+ * the filter length times 2^levels (256 samples for Daubechies 8 and 0.78125 Hz at 50 Hz),
+ * so the transform is a few hundred samples longer than the block (see symmetricLength).
+ * With Transform.UNDECIMATED the band is removed with a MODWT (see ModwtPlan), which
+ * accepts blocks of any length, so they are neither padded nor limited to powers of 2.
+ */
+public class WaveletBaselineFilter {
+
+    public enum Transform {
+        // DWT of the block zero padded to a power of 2
+        DECIMATED,
+        // MODWT of the block as it is, any length
+        UNDECIMATED
+    }
+
+    private final double samplingFrequency;
+    private final double cutoffHz;
+    private final Wavelet wavelet;
+    private final int order;
+    private final int scale;
+    private final DWT.Boundary boundary;
+    private final Transform transform;
+    // Margin of the symmetric extension at each edge, filter length * 2^levels
+    private final int symmetricMargin;
+
+    // Rebuilt only when the padded block length changes
+    private DwtWorkspace workspace = null;
+    private int approximationLength = 0;
+    // Mirrored block, only used with DWT.Boundary.symmetric
+    private double[] extended = null;
+    private float[] extendedFloat = null;
+    // Only used with Transform.UNDECIMATED, the plan does not depend on the block length
+    private ModwtPlan modwtPlan = null;
+    private double[] modwtScratch = null;
+    private float[] modwtScratchFloat = null;
+    private int[] modwtShifts = null;
+
+    /**
+     * Daubechies 8 down to scale 4, the wavelet used by ProcessSignals.
+     */
+    public WaveletBaselineFilter(double samplingFrequency, double cutoffHz) {
+        this(samplingFrequency, cutoffHz, DWT.Boundary.periodic);
+    }
+
+    public WaveletBaselineFilter(double samplingFrequency, double cutoffHz, DWT.Boundary boundary) {
+        this(samplingFrequency, cutoffHz, Transform.DECIMATED, boundary);
+    }
+
+    public WaveletBaselineFilter(double samplingFrequency, double cutoffHz, Transform transform, DWT.Boundary boundary) {
+        this(samplingFrequency, cutoffHz, Wavelet.Daubechies, 8, 4, boundary, transform);
+    }
+
+    public WaveletBaselineFilter(double samplingFrequency, double cutoffHz, Wavelet wavelet, int order, int scale) {
+        this(samplingFrequency, cutoffHz, wavelet, order, scale, DWT.Boundary.periodic);
+    }
+
+    public WaveletBaselineFilter(double samplingFrequency, double cutoffHz, Wavelet wavelet, int order, int scale, DWT.Boundary boundary) {
+        this(samplingFrequency, cutoffHz, wavelet, order, scale, boundary, Transform.DECIMATED);
+    }
+
+    /**
+     * @param scale coarsest DWT scale, not used by the undecimated transform, whose number of
+     *              levels follows from the cutoff (see ModwtPlan.levels)
+     */
+    public WaveletBaselineFilter(double samplingFrequency, double cutoffHz, Wavelet wavelet, int order, int scale, DWT.Boundary boundary, Transform transform) {
+        this.boundary = boundary;
+        this.transform = transform;
+        this.samplingFrequency = samplingFrequency;
+        this.cutoffHz = cutoffHz;
+        this.wavelet = wavelet;
+        this.order = order;
+        this.scale = scale;
+        this.symmetricMargin = OrthogonalFilters.getFilterLength(wavelet, order) << ModwtPlan.levels(cutoffHz, samplingFrequency);
+    }
+
+    /**
+     * Length of the output for a block of the given length: the closest power of 2
+     * that is not shorter, as DWT.padPow2 does.
+     */
+    public static int paddedLength(int length) {
+        int N = Integer.highestOneBit(length);
+        if(N < length)
+            N = 2*N;
+        return N;
+    }
+
+    /**
+     * Length of the DWT of a block of the given length with the symmetric boundary: the block
+     * and a margin of filter length * 2^levels at each edge, rounded up to a multiple of
+     * 2^levels so that every level halves an even length, e.g. 1536 for 1024 samples with
+     * Daubechies 8 and 0.78125 Hz at 50 Hz, where a power of 2 would take 2048.
+     */
+    public int symmetricLength(int length) {
+        int step = 1 << Math.max(ModwtPlan.levels(cutoffHz, samplingFrequency), scale);
+        int n = length + 2*symmetricMargin;
+        return (n + step - 1)/step*step;
+    }
+
+    /**
+     * Length of the output of filter for a block of the given length: paddedLength(length)
+     * for the DWT, the length itself for the undecimated transform.
+     */
+    public int outputLength(int length) {
+        if (transform == Transform.UNDECIMATED)
+            return length;
+        return paddedLength(length);
+    }
+
+    /**
+     * Removes the baseline of src[offset..offset+length-1], zero padded to paddedLength(length).
+     * With the symmetric boundary the block is instead mirrored to symmetricLength(length)
+     * samples, centered, and dst[length..paddedLength(length)-1] is set to 0.
+     * The undecimated transform does not pad, it mirrors the block to 2*length samples with
+     * the symmetric boundary.
+     *
+     * @param dst receives outputLength(length) samples, may be src when offset is 0
+     * @throws Exception invalid wavelet parameters for this block length
+     */
+    public void filter(double[] src, int offset, int length, double[] dst) throws Exception {
+        if (transform == Transform.UNDECIMATED) {
+            prepareModwt();
+            if (boundary == DWT.Boundary.periodic) {
+                if (modwtScratch == null || modwtScratch.length < 2*length)
+                    modwtScratch = new double[2*length];
+                modwtPlan.removeSmooth(src, offset, length, dst, modwtScratch, modwtShifts);
+                return;
+            }
+            int n = 2*length;
+            if (modwtScratch == null || modwtScratch.length < 2*n)
+                modwtScratch = new double[2*n];
+            if (extended == null || extended.length < n)
+                extended = new double[n];
+            DWT.symmetricExtension(src, offset, length, extended, n, length/2);
+            modwtPlan.removeSmooth(extended, 0, n, extended, modwtScratch, modwtShifts);
+            System.arraycopy(extended, length/2, dst, 0, length);
+            return;
+        }
+        if (boundary == DWT.Boundary.periodic) {
+            prepare(paddedLength(length));
+            workspace.getPlan().removeApproximation(src, offset, length, dst, approximationLength, workspace);
+            return;
+        }
+        int n = symmetricLength(length);
+        int margin = (n - length)/2;
+        prepare(n);
+        if (extended == null || extended.length < n)
+            extended = new double[n];
+        DWT.symmetricExtension(src, offset, length, extended, n, margin);
+        workspace.getPlan().removeApproximation(extended, 0, n, extended, approximationLength, workspace);
+        System.arraycopy(extended, margin, dst, 0, length);
+        Arrays.fill(dst, length, paddedLength(length), 0.0);
+    }
+
+    /**
+     * Single precision version of filter(double[], int, int, double[]).
+     */
+    public void filter(float[] src, int offset, int length, float[] dst) throws Exception {
+        if (transform == Transform.UNDECIMATED) {
+            prepareModwt();
+            if (boundary == DWT.Boundary.periodic) {
+                if (modwtScratchFloat == null || modwtScratchFloat.length < 2*length)
+                    modwtScratchFloat = new float[2*length];
+                modwtPlan.removeSmooth(src, offset, length, dst, modwtScratchFloat, modwtShifts);
+                return;
+            }
+            int n = 2*length;
+            if (modwtScratchFloat == null || modwtScratchFloat.length < 2*n)
+                modwtScratchFloat = new float[2*n];
+            if (extendedFloat == null || extendedFloat.length < n)
+                extendedFloat = new float[n];
+            DWT.symmetricExtension(src, offset, length, extendedFloat, n, length/2);
+            modwtPlan.removeSmooth(extendedFloat, 0, n, extendedFloat, modwtScratchFloat, modwtShifts);
+            System.arraycopy(extendedFloat, length/2, dst, 0, length);
+            return;
+        }
+        if (boundary == DWT.Boundary.periodic) {
+            prepare(paddedLength(length));
+            workspace.getPlan().removeApproximation(src, offset, length, dst, approximationLength, workspace);
+            return;
+        }
+        int n = symmetricLength(length);
+        int margin = (n - length)/2;
+        prepare(n);
+        if (extendedFloat == null || extendedFloat.length < n)
+            extendedFloat = new float[n];
+        DWT.symmetricExtension(src, offset, length, extendedFloat, n, margin);
+        workspace.getPlan().removeApproximation(extendedFloat, 0, n, extendedFloat, approximationLength, workspace);
+        System.arraycopy(extendedFloat, margin, dst, 0, length);
+        Arrays.fill(dst, length, paddedLength(length), 0.0f);
+    }
+
+    // N is the length of the transform, which is longer than the block with the symmetric boundary
+    private void prepare(int N) throws Exception {
+        if (workspace == null || workspace.getPlan().getLength() != N) {
+            DwtPlan plan = DwtPlan.get(wavelet, order, scale, N);
+            workspace = new DwtWorkspace(plan);
+            approximationLength = plan.approximationLength(cutoffHz, samplingFrequency);
+        }
+    }
+
+    private void prepareModwt() throws Exception {
+        if (modwtPlan == null) {
+            modwtPlan = new ModwtPlan(wavelet, order, ModwtPlan.levels(cutoffHz, samplingFrequency));
+            modwtShifts = new int[modwtPlan.getFilterLength()];
+        }
+    }
+
+    /**
+     * @return number of approximation coefficients removed from the last block, 0 with the
+     *         undecimated transform
+     */
+    public int getApproximationLength() {
+        return approximationLength;
+    }
+
+    public double getCutoffHz() {
+        return cutoffHz;
+    }
+
+    public DWT.Boundary getBoundary() {
+        return boundary;
+    }
+
+    public Transform getTransform() {
+        return transform;
+    }
+}
@@ -0,0 +1,36 @@
+package com.example;
+
+/**
+ * Baseline and high frequency noise removal by the WaveletBaselineFilter. The output is
+ * zero padded to the length the DWT needs, see WaveletBaselineFilter.outputLength.
+ */
+public class WaveletBaselineStage extends SignalStage {
+
+    private final WaveletBaselineFilter filter;
+
+    public WaveletBaselineStage(WaveletBaselineFilter filter) {
+        super("wavelet baseline");
+        this.filter = filter;
+    }
+
+    @Override
+    protected int process(double[] in, int offset, int length, double[] out) throws Exception {
+        filter.filter(in, offset, length, out);
+        return filter.outputLength(length);
+    }
+
+    @Override
+    protected int process(float[] in, int offset, int length, float[] out) throws Exception {
+        filter.filter(in, offset, length, out);
+        return filter.outputLength(length);
+    }
+
+    @Override
+    public int outputLength(int inputLength) {
+        return filter.outputLength(inputLength);
+    }
+
+    public WaveletBaselineFilter getFilter() {
+        return filter;
+    }
+}
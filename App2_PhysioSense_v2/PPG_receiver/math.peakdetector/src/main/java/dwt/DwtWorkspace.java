@@ -0,0 +1,33 @@
+package dwt;
+
+/**
+ * Class responsibility: Own the scratch memory used while running a DwtPlan,
+ * so that callers which transform block after block can keep one workspace
+ * and perform no heap allocation per block.
+ *
+ * A workspace must not be shared between threads that transform at the same
+ * time; give every thread (or every stream) its own.
+ */
+public class DwtWorkspace {
+
+	private final DwtPlan plan;
+	final double[] scratch;
+	// Only allocated once a single precision transform uses the workspace
+	private float[] floatScratch = null;
+
+	public DwtWorkspace(DwtPlan plan) {
+		this.plan = plan;
+		this.scratch = new double[plan.getLength()];
+	}
+
+	float[] getFloatScratch() {
+		if (floatScratch == null) {
+			floatScratch = new float[plan.getLength()];
+		}
+		return floatScratch;
+	}
+
+	public DwtPlan getPlan() {
+		return plan;
+	}
+}
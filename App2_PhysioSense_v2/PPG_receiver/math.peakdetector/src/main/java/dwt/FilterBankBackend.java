@@ -0,0 +1,44 @@
+package dwt;
+
+/**
+ * Class responsibility: Define the two periodic filter bank kernels that an
+ * optional accelerated backend (see FilterBankBackends) replaces. Both the
+ * DWT filter bank (DwtPlan) and the JWave wavelets (Wavelet.forward/reverse)
+ * are instances of these kernels with different filters and shifts.
+ *
+ * Indices are taken modulo scale. With half = scale / 2:
+ *
+ * analysis: out[i] = sum_j low[j] x[2i + j + lowShift] and out[half + i] =
+ * sum_j high[j] x[2i + j + highShift], for i in [0, half).
+ *
+ * synthesis is the transpose of analysis: every y[i] (y[half + i]) is spread
+ * over out[2i + j + lowShift] (out[2i + j + highShift]) with weights low[j]
+ * (high[j]).
+ *
+ * An accelerated backend may add the terms in another order than the scalar
+ * kernels, so its results can differ from them in the last bits.
+ */
+public interface FilterBankBackend {
+
+	/**
+	 * @param x
+	 *            input, only x[0..scale-1] is read
+	 * @param scale
+	 *            current sub-signal length, even
+	 * @param out
+	 *            receives out[0..scale-1], must not be x
+	 */
+	void analysis(double[] x, int scale, double[] low, int lowShift,
+			double[] high, int highShift, double[] out);
+
+	/**
+	 * @param y
+	 *            input, only y[0..scale-1] is read
+	 * @param scale
+	 *            current sub-signal length, even
+	 * @param out
+	 *            receives out[0..scale-1], must not be y
+	 */
+	void synthesis(double[] y, int scale, double[] low, int lowShift,
+			double[] high, int highShift, double[] out);
+}
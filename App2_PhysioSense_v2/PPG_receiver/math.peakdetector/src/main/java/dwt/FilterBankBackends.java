@@ -0,0 +1,45 @@
+package dwt;
+
+/**
+ * Class responsibility: Select the filter bank backend once per JVM.
+ *
+ * The SIMD backend (dwt.VectorFilterBank, built from src/simd/java with the
+ * incubating Vector API of JDK 16+) is used only when the system property
+ * "peakdetector.simd" is "true" and the class and the jdk.incubator.vector
+ * module can be loaded, e.g. java --add-modules jdk.incubator.vector
+ * -Dpeakdetector.simd=true. In every other case, and on Android, simd()
+ * returns null and callers keep their scalar loops.
+ */
+public final class FilterBankBackends {
+
+	public static final String SIMD_PROPERTY = "peakdetector.simd";
+
+	private static final String SIMD_CLASS = "dwt.VectorFilterBank";
+
+	private static final FilterBankBackend simd = loadSimd();
+
+	private FilterBankBackends() {
+	}
+
+	/**
+	 * @return the SIMD backend, or null when the scalar kernels must be used
+	 */
+	public static FilterBankBackend simd() {
+		return simd;
+	}
+
+	private static FilterBankBackend loadSimd() {
+		if (!Boolean.parseBoolean(System.getProperty(SIMD_PROPERTY))) {
+			return null;
+		}
+		try {
+			return (FilterBankBackend) Class.forName(SIMD_CLASS)
+					.getDeclaredConstructor().newInstance();
+		} catch (Throwable t) {
+			// Missing class, module not added or unsupported platform
+			System.err.println("SIMD filter bank unavailable,"
+					+ " using scalar kernels: " + t);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package dwt;
+
+/**
+ * Class responsibility: Maximal overlap (undecimated) discrete wavelet
+ * transform of a fixed wavelet/order/number-of-levels combination, for
+ * signals of any length.
+ *
+ * The MODWT keeps every sample at every level: level j filters the previous
+ * one with the rescaled low-pass filter H / sqrt(2), upsampled by 2^(j-1)
+ * (the pyramid algorithm of Percival and Walden), with periodic boundaries.
+ * Unlike DwtPlan the length of the signal does not have to be a power of two,
+ * so blocks are never zero padded. The price is about twice the work of the
+ * decimated transform per level, as no level is shorter than the signal.
+ *
+ * A plan holds no per-call state and can be shared between threads; the
+ * scratch memory is passed in by the caller.
+ */
+public class ModwtPlan {
+
+	private static final int MAX_LEVELS = 16;
+
+	private final Wavelet wavelet;
+	private final int order;
+	private final int levels;
+	private final double[] H;
+	private final float[] floatH;
+
+	/**
+	 * @param wavelet
+	 *            Haar, Daubechies, etc. (see OrthogonalFilters.java)
+	 * @param order
+	 *            e.g Daubechies 8 has order = 8
+	 * @param levels
+	 *            number of decompositions, from 1 to 16
+	 * @throws Exception
+	 *             Invalid wavelet parameters
+	 */
+	public ModwtPlan(Wavelet wavelet, int order, int levels) throws Exception {
+		if (!OrthogonalFilters.validParameters(wavelet).contains(order)
+				|| levels < 1 || levels > MAX_LEVELS) {
+			throw new Exception("Invalid wavelet /order/levels combination.");
+		}
+		this.wavelet = wavelet;
+		this.order = order;
+		this.levels = levels;
+		double[] lowPass = OrthogonalFilters.getLowPass(wavelet, order);
+		this.H = new double[lowPass.length];
+		this.floatH = new float[lowPass.length];
+		for (int i = 0; i < lowPass.length; i++) {
+			H[i] = lowPass[i] / Math.sqrt(2.0);
+			floatH[i] = (float) H[i];
+		}
+	}
+
+	/**
+	 * Number of levels whose smooth holds the band from 0 Hz up to cutoffHz:
+	 * the smooth of level J spans 0 to Fs / 2^(J+1) Hz, so this is the
+	 * largest J with Fs / 2^(J+1) >= cutoffHz, at least 1. For example
+	 * 0.78125 Hz at Fs = 50 Hz gives 5, the same band that DwtPlan
+	 * removes with 32 of 1024 coefficients.
+	 *
+	 * @param cutoffHz
+	 *            highest frequency to remove
+	 * @param samplingFrequency
+	 *            sampling frequency of the signal in Hz
+	 */
+	public static int levels(double cutoffHz, double samplingFrequency) {
+		int levels = 1;
+		while (levels < MAX_LEVELS
+				&& samplingFrequency / (1 << (levels + 2)) >= cutoffHz) {
+			levels++;
+		}
+		return levels;
+	}
+
+	/**
+	 * Removes the smooth of the coarsest level (the low frequency band) from
+	 * src[offset..offset+length-1]. Only the low-pass path is computed: the
+	 * levels are filtered down and the smooth is filtered back up, with
+	 * ping-pong buffers in scratch.
+	 *
+	 * @param dst
+	 *            receives length samples, may be src when offset is 0
+	 * @param scratch
+	 *            at least 2 * length samples
+	 */
+	public void removeSmooth(double[] src, int offset, int length,
+			double[] dst, double[] scratch) {
+		removeSmooth(src, offset, length, dst, scratch, new int[H.length]);
+	}
+
+	/**
+	 * Same as removeSmooth, without allocating: the tap offsets are kept in
+	 * shifts, at least getFilterLength() entries.
+	 */
+	public void removeSmooth(double[] src, int offset, int length,
+			double[] dst, double[] scratch, int[] shifts) {
+		checkArguments(src.length, offset, length, dst.length, scratch.length);
+		if (shifts.length < H.length) {
+			throw new IllegalArgumentException("Shifts of " + shifts.length
+					+ " entries cannot hold a filter of " + H.length);
+		}
+		int current = 0;
+		int stride = 1;
+		for (int j = 0; j < levels; j++) {
+			strideShifts(stride, length, shifts);
+			int next = j == 0 ? 0 : length - current;
+			if (j == 0) {
+				analysisStep(src, offset, scratch, 0, length, shifts);
+			} else {
+				analysisStep(scratch, current, scratch, next, length, shifts);
+			}
+			current = next;
+			stride *= 2;
+		}
+		if (src != dst || offset != 0) {
+			System.arraycopy(src, offset, dst, 0, length);
+		}
+		for (int j = levels - 1; j >= 0; j--) {
+			stride /= 2;
+			strideShifts(stride, length, shifts);
+			if (j == 0) {
+				synthesisStep(scratch, current, dst, 0, length, shifts, true);
+			} else {
+				int next = length - current;
+				synthesisStep(scratch, current, scratch, next, length, shifts,
+						false);
+				current = next;
+			}
+		}
+	}
+
+	/**
+	 * Single precision version of removeSmooth.
+	 */
+	public void removeSmooth(float[] src, int offset, int length,
+			float[] dst, float[] scratch) {
+		removeSmooth(src, offset, length, dst, scratch, new int[H.length]);
+	}
+
+	/**
+	 * Same as removeSmooth, without allocating: the tap offsets are kept in
+	 * shifts, at least getFilterLength() entries.
+	 */
+	public void removeSmooth(float[] src, int offset, int length,
+			float[] dst, float[] scratch, int[] shifts) {
+		checkArguments(src.length, offset, length, dst.length, scratch.length);
+		if (shifts.length < H.length) {
+			throw new IllegalArgumentException("Shifts of " + shifts.length
+					+ " entries cannot hold a filter of " + H.length);
+		}
+		int current = 0;
+		int stride = 1;
+		for (int j = 0; j < levels; j++) {
+			strideShifts(stride, length, shifts);
+			int next = j == 0 ? 0 : length - current;
+			if (j == 0) {
+				analysisStep(src, offset, scratch, 0, length, shifts);
+			} else {
+				analysisStep(scratch, current, scratch, next, length, shifts);
+			}
+			current = next;
+			stride *= 2;
+		}
+		if (src != dst || offset != 0) {
+			System.arraycopy(src, offset, dst, 0, length);
+		}
+		for (int j = levels - 1; j >= 0; j--) {
+			stride /= 2;
+			strideShifts(stride, length, shifts);
+			if (j == 0) {
+				synthesisStep(scratch, current, dst, 0, length, shifts, true);
+			} else {
+				int next = length - current;
+				synthesisStep(scratch, current, scratch, next, length, shifts,
+						false);
+				current = next;
+			}
+		}
+	}
+
+	/**
+	 * shifts[l] = (stride * l) mod n, the periodic offset of tap l
+	 */
+	private void strideShifts(int stride, int n, int[] shifts) {
+		for (int l = 0; l < H.length; l++) {
+			shifts[l] = (int) (((long) stride * l) % n);
+		}
+	}
+
+	private int maxShift(int[] shifts) {
+		int max = 0;
+		for (int l = 0; l < H.length; l++) {
+			max = Math.max(max, shifts[l]);
+		}
+		return max;
+	}
+
+	/**
+	 * out[t] = sum_l H[l] x[(t - stride l) mod n]
+	 */
+	private void analysisStep(double[] x, int xOffset, double[] out,
+			int outOffset, int n, int[] shifts) {
+		// Only the first samples wrap around
+		int wrapped = Math.min(n, maxShift(shifts));
+		for (int t = 0; t < wrapped; t++) {
+			double sum = 0.0;
+			for (int l = 0; l < H.length; l++) {
+				int index = t - shifts[l];
+				if (index < 0) {
+					index += n;
+				}
+				sum += H[l] * x[xOffset + index];
+			}
+			out[outOffset + t] = sum;
+		}
+		for (int t = wrapped; t < n; t++) {
+			double sum = 0.0;
+			int base = xOffset + t;
+			for (int l = 0; l < H.length; l++) {
+				sum += H[l] * x[base - shifts[l]];
+			}
+			out[outOffset + t] = sum;
+		}
+	}
+
+	/**
+	 * out[t] = sum_l H[l] y[(t + stride l) mod n], subtracted from out when
+	 * subtract is set
+	 */
+	private void synthesisStep(double[] y, int yOffset, double[] out,
+			int outOffset, int n, int[] shifts, boolean subtract) {
+		// Only the last samples wrap around
+		int direct = Math.max(0, n - maxShift(shifts));
+		for (int t = 0; t < n; t++) {
+			double sum = 0.0;
+			if (t < direct) {
+				int base = yOffset + t;
+				for (int l = 0; l < H.length; l++) {
+					sum += H[l] * y[base + shifts[l]];
+				}
+			} else {
+				for (int l = 0; l < H.length; l++) {
+					int index = t + shifts[l];
+					if (index >= n) {
+						index -= n;
+					}
+					sum += H[l] * y[yOffset + index];
+				}
+			}
+			if (subtract) {
+				out[outOffset + t] -= sum;
+			} else {
+				out[outOffset + t] = sum;
+			}
+		}
+	}
+
+	private void analysisStep(float[] x, int xOffset, float[] out,
+			int outOffset, int n, int[] shifts) {
+		// Only the first samples wrap around
+		int wrapped = Math.min(n, maxShift(shifts));
+		for (int t = 0; t < wrapped; t++) {
+			float sum = 0.0f;
+			for (int l = 0; l < floatH.length; l++) {
+				int index = t - shifts[l];
+				if (index < 0) {
+					index += n;
+				}
+				sum += floatH[l] * x[xOffset + index];
+			}
+			out[outOffset + t] = sum;
+		}
+		for (int t = wrapped; t < n; t++) {
+			float sum = 0.0f;
+			int base = xOffset + t;
+			for (int l = 0; l < floatH.length; l++) {
+				sum += floatH[l] * x[base - shifts[l]];
+			}
+			out[outOffset + t] = sum;
+		}
+	}
+
+	private void synthesisStep(float[] y, int yOffset, float[] out,
+			int outOffset, int n, int[] shifts, boolean subtract) {
+		// Only the last samples wrap around
+		int direct = Math.max(0, n - maxShift(shifts));
+		for (int t = 0; t < n; t++) {
+			float sum = 0.0f;
+			if (t < direct) {
+				int base = yOffset + t;
+				for (int l = 0; l < floatH.length; l++) {
+					sum += floatH[l] * y[base + shifts[l]];
+				}
+			} else {
+				for (int l = 0; l < floatH.length; l++) {
+					int index = t + shifts[l];
+					if (index >= n) {
+						index -= n;
+					}
+					sum += floatH[l] * y[yOffset + index];
+				}
+			}
+			if (subtract) {
+				out[outOffset + t] -= sum;
+			} else {
+				out[outOffset + t] = sum;
+			}
+		}
+	}
+
+	private static void checkArguments(int srcLength, int offset, int length,
+			int dstLength, int scratchLength) {
+		if (length < 1 || offset < 0 || offset + length > srcLength) {
+			throw new IllegalArgumentException("Invalid block: offset="
+					+ offset + ", length=" + length);
+		}
+		if (dstLength < length) {
+			throw new IllegalArgumentException("Output of " + dstLength
+					+ " samples cannot hold a block of " + length);
+		}
+		if (scratchLength < 2 * length) {
+			throw new IllegalArgumentException("Scratch of " + scratchLength
+					+ " samples is shorter than twice the block length "
+					+ length);
+		}
+	}
+
+	public Wavelet getWavelet() {
+		return wavelet;
+	}
+
+	public int getOrder() {
+		return order;
+	}
+
+	public int getLevels() {
+		return levels;
+	}
+
+	/**
+	 * @return number of taps of the wavelet filters
+	 */
+	public int getFilterLength() {
+		return H.length;
+	}
+}
@@ -23,6 +23,9 @@
  */
 package math.transform.jwave.handlers.wavelets;
 
+import dwt.FilterBankBackend;
+import dwt.FilterBankBackends;
+
 /**
  * Basic class for one wavelet keeping coefficients of the wavelet function, the
  * scaling function, the base wavelength, the forward transform method, and the
@@ -76,6 +79,12 @@ public abstract class Wavelet implements WaveletInterface {
 
     double[ ] arrHilb = new double[ arrTime.length ];
 
+    FilterBankBackend simd = FilterBankBackends.simd( );
+    if( simd != null && arrTime.length >= 2 ) {
+      simd.analysis( arrTime, arrTime.length, _scales, 0, _coeffs, 0, arrHilb );
+      return arrHilb;
+    } // SIMD backend, see dwt.FilterBankBackends
+
     int k = 0;
     int h = arrTime.length >> 1;
 
@@ -113,6 +122,12 @@ public abstract class Wavelet implements WaveletInterface {
 
     double[ ] arrTime = new double[ arrHilb.length ];
 
+    FilterBankBackend simd = FilterBankBackends.simd( );
+    if( simd != null && arrHilb.length >= 2 ) {
+      simd.synthesis( arrHilb, arrHilb.length, _scales, 0, _coeffs, 0, arrTime );
+      return arrTime;
+    } // SIMD backend, see dwt.FilterBankBackends
+
     int k = 0;
     int h = arrHilb.length >> 1;
     for( int i = 0; i < h; i++ ) {
@@ -0,0 +1,114 @@
+package dwt;
+
+import java.util.Random;
+
+import math.transform.jwave.handlers.wavelets.Daub04;
+
+/**
+ * Class responsibility: Compare the scalar filter bank kernels with
+ * VectorFilterBank on the DWT filters used by the PPG pipeline and on a JWave
+ * wavelet, printing the time per call and the largest difference between the
+ * two results. Run with gradle simdBenchmark.
+ */
+public class FilterBankBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(42);
+		VectorFilterBank simd = new VectorFilterBank();
+		Daub04 jwave = new Daub04();
+		double[] jwaveScales = jwave.getScales();
+		double[] jwaveCoeffs = jwave.getCoeffs();
+
+		System.out.println("kernel, filter, n, scalar us, simd us, max |diff|");
+		for (int order : new int[] { 8, 20 }) {
+			double[] H = OrthogonalFilters.getLowPass(Wavelet.Daubechies, order);
+			double[] G = OrthogonalFilters.getHighPass(H);
+			for (int n : new int[] { 1024, 65536 }) {
+				double[] x = new double[n];
+				for (int i = 0; i < n; i++) {
+					x[i] = random.nextGaussian();
+				}
+				double[] scalarOut = new double[n];
+				double[] simdOut = new double[n];
+				int iterations = Math.max(1, (1 << 24) / (n * order));
+
+				double scalar = 0, vector = 0;
+				for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+					long t0 = System.nanoTime();
+					for (int k = 0; k < iterations; k++) {
+						DWT.analysisStep(x, scalarOut, n, H, G);
+					}
+					long t1 = System.nanoTime();
+					for (int k = 0; k < iterations; k++) {
+						simd.analysis(x, n, H, 0, G, 2 - H.length, simdOut);
+					}
+					long t2 = System.nanoTime();
+					if (round >= WARMUP_ROUNDS) {
+						scalar += (t1 - t0) / 1e3 / iterations / ROUNDS;
+						vector += (t2 - t1) / 1e3 / iterations / ROUNDS;
+					}
+				}
+				print("analysis", "Db" + order, n, scalar, vector, maxDiff(scalarOut, simdOut));
+
+				scalar = 0;
+				vector = 0;
+				for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+					long t0 = System.nanoTime();
+					for (int k = 0; k < iterations; k++) {
+						DWT.synthesisStep(x, scalarOut, n, H, G);
+					}
+					long t1 = System.nanoTime();
+					for (int k = 0; k < iterations; k++) {
+						simd.synthesis(x, n, H, 0, G, 2 - H.length, simdOut);
+					}
+					long t2 = System.nanoTime();
+					if (round >= WARMUP_ROUNDS) {
+						scalar += (t1 - t0) / 1e3 / iterations / ROUNDS;
+						vector += (t2 - t1) / 1e3 / iterations / ROUNDS;
+					}
+				}
+				print("synthesis", "Db" + order, n, scalar, vector, maxDiff(scalarOut, simdOut));
+
+				if (order != 8) {
+					continue;
+				}
+				scalar = 0;
+				vector = 0;
+				double[] jwaveOut = null;
+				for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+					long t0 = System.nanoTime();
+					for (int k = 0; k < iterations; k++) {
+						jwaveOut = jwave.forward(x);
+					}
+					long t1 = System.nanoTime();
+					for (int k = 0; k < iterations; k++) {
+						simd.analysis(x, n, jwaveScales, 0, jwaveCoeffs, 0, simdOut);
+					}
+					long t2 = System.nanoTime();
+					if (round >= WARMUP_ROUNDS) {
+						scalar += (t1 - t0) / 1e3 / iterations / ROUNDS;
+						vector += (t2 - t1) / 1e3 / iterations / ROUNDS;
+					}
+				}
+				print("jwave forward", "Daub04", n, scalar, vector, maxDiff(jwaveOut, simdOut));
+			}
+		}
+	}
+
+	private static void print(String kernel, String filter, int n,
+			double scalar, double vector, double diff) {
+		System.out.printf("%s, %s, %d, %.2f, %.2f, %.2e%n", kernel, filter, n,
+				scalar, vector, diff);
+	}
+
+	private static double maxDiff(double[] a, double[] b) {
+		double max = 0;
+		for (int i = 0; i < a.length; i++) {
+			max = Math.max(max, Math.abs(a[i] - b[i]));
+		}
+		return max;
+	}
+}
@@ -0,0 +1,155 @@
+package dwt;
+
+import java.util.IdentityHashMap;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Class responsibility: SIMD implementation of FilterBankBackend on top of the
+ * incubating Vector API (JDK 16+, --add-modules jdk.incubator.vector).
+ *
+ * The strided convolutions are rewritten in polyphase form: the input is
+ * split once into even and odd samples (periodically extended), so every
+ * output vector is a sum of unit-stride loads times broadcast filter taps.
+ * Synthesis computes the even and odd outputs the same way and interleaves
+ * them. Loaded by FilterBankBackends only; never referenced from the main
+ * source set.
+ */
+public class VectorFilterBank implements FilterBankBackend {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	@Override
+	public void analysis(double[] x, int scale, double[] low, int lowShift,
+			double[] high, int highShift, double[] out) {
+		int half = scale / 2;
+		Scratch s = scratch.get();
+		analysisBand(x, scale, low, lowShift, out, 0, s);
+		analysisBand(x, scale, high, highShift, out, half, s);
+	}
+
+	@Override
+	public void synthesis(double[] y, int scale, double[] low, int lowShift,
+			double[] high, int highShift, double[] out) {
+		int half = scale / 2;
+		Scratch s = scratch.get();
+		int taps = Math.max((low.length + 1) / 2, (high.length + 1) / 2);
+		int margin = taps + Math.max(Math.abs(lowShift), Math.abs(highShift))
+				/ 2 + 2;
+		int extended = half + 2 * margin;
+		double[] approximation = s.first = grow(s.first, extended);
+		double[] detail = s.second = grow(s.second, extended);
+		for (int q = 0; q < extended; q++) {
+			int i = floorMod(q - margin, half);
+			approximation[q] = y[i];
+			detail[q] = y[half + i];
+		}
+		double[] phase = s.phase = grow(s.phase, half);
+		for (int r = 0; r < 2; r++) {
+			// out[2p + r] takes the taps of parity rho of each filter, and
+			// y[p - m + c] for tap m
+			int lowRho = (r - lowShift) & 1;
+			int highRho = (r - highShift) & 1;
+			int lowC = (r - lowShift - lowRho) / 2;
+			int highC = (r - highShift - highRho) / 2;
+			dot(approximation, margin + lowC, s.phases(low)[lowRho], detail,
+					margin + highC, s.phases(high)[highRho], -1, phase, 0, half);
+			for (int p = 0, k = r; p < half; p++, k += 2) {
+				out[k] = phase[p];
+			}
+		}
+	}
+
+	private static void analysisBand(double[] x, int scale, double[] filter,
+			int shift, double[] out, int outOffset, Scratch s) {
+		int half = scale / 2;
+		double[][] phases = s.phases(filter);
+		int extended = half + phases[0].length;
+		double[] even = s.first = grow(s.first, extended);
+		double[] odd = s.second = grow(s.second, extended);
+		for (int q = 0; q < extended; q++) {
+			even[q] = x[floorMod(2 * q + shift, scale)];
+			odd[q] = x[floorMod(2 * q + shift + 1, scale)];
+		}
+		dot(even, 0, phases[0], odd, 0, phases[1], 1, out, outOffset, half);
+	}
+
+	/**
+	 * out[outOffset + i] = sum_m f1[m] x1[base1 + i + step m] + f2[m] x2[base2
+	 * + i + step m], for i in [0, count)
+	 */
+	private static void dot(double[] x1, int base1, double[] f1, double[] x2,
+			int base2, double[] f2, int step, double[] out, int outOffset,
+			int count) {
+		int lanes = SPECIES.length();
+		int bound = SPECIES.loopBound(count);
+		int i = 0;
+		for (; i < bound; i += lanes) {
+			DoubleVector acc = DoubleVector.zero(SPECIES);
+			for (int m = 0; m < f1.length; m++) {
+				acc = DoubleVector.fromArray(SPECIES, x1, base1 + i + step * m)
+						.fma(DoubleVector.broadcast(SPECIES, f1[m]), acc);
+			}
+			for (int m = 0; m < f2.length; m++) {
+				acc = DoubleVector.fromArray(SPECIES, x2, base2 + i + step * m)
+						.fma(DoubleVector.broadcast(SPECIES, f2[m]), acc);
+			}
+			acc.intoArray(out, outOffset + i);
+		}
+		for (; i < count; i++) {
+			double sum = 0.0;
+			for (int m = 0; m < f1.length; m++) {
+				sum += f1[m] * x1[base1 + i + step * m];
+			}
+			for (int m = 0; m < f2.length; m++) {
+				sum += f2[m] * x2[base2 + i + step * m];
+			}
+			out[outOffset + i] = sum;
+		}
+	}
+
+	private static int floorMod(int a, int b) {
+		int r = a % b;
+		return r < 0 ? r + b : r;
+	}
+
+	private static double[] grow(double[] array, int length) {
+		return array.length >= length ? array : new double[length];
+	}
+
+	/**
+	 * Per thread buffers, reused across calls, and the even/odd taps of the
+	 * filters seen so far (filters are long lived arrays of plans and
+	 * wavelets).
+	 */
+	private static final class Scratch {
+		double[] first = new double[0];
+		double[] second = new double[0];
+		double[] phase = new double[0];
+		private final IdentityHashMap<double[], double[][]> phases = new IdentityHashMap<double[], double[][]>();
+
+		double[][] phases(double[] filter) {
+			double[][] split = phases.get(filter);
+			if (split == null) {
+				int taps = (filter.length + 1) / 2;
+				split = new double[2][taps];
+				for (int j = 0; j < filter.length; j++) {
+					split[j & 1][j >> 1] = filter[j];
+				}
+				if (phases.size() > 64) {
+					phases.clear();
+				}
+				phases.put(filter, split);
+			}
+			return split;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.example;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class HrvEngineTest {
+
+    private static final int FS = 50;
+    private static final int WINDOW_OVERLAP = 112;
+
+    // Recording of the watch, "time,value" per line, a copy of the one next to PeakDetector
+    private static final String TEST_SIGNAL = "/ppg_signal_test.csv";
+
+    private static double[] loadTestSignal() throws IOException {
+        InputStream stream = HrvEngineTest.class.getResourceAsStream(TEST_SIGNAL);
+        assertNotNull(TEST_SIGNAL + " is not on the test classpath", stream);
+        List<Double> values = new ArrayList<Double>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+                values.add(Double.parseDouble(line.split(",")[1]));
+        } finally {
+            reader.close();
+        }
+        double[] signal = new double[values.size()];
+        for (int i = 0; i < signal.length; i++)
+            signal[i] = values.get(i);
+        return signal;
+    }
+
+    // Pulses at heartRateHz over a slow baseline and noise, around the values of the watches
+    private static double[] syntheticSignal(int length, long seed, double heartRateHz) {
+        Random random = new Random(seed);
+        double[] signal = new double[length];
+        for (int i = 0; i < length; i++) {
+            double t = i / (double) FS;
+            signal[i] = 20000 + 3000*Math.pow(Math.max(0, Math.sin(2*Math.PI*heartRateHz*t)), 3)
+                    + 800*Math.sin(2*Math.PI*0.2*t) + 100*random.nextGaussian();
+        }
+        return signal;
+    }
+
+    private static HrvEngine engine(int blockSize, Precision precision) {
+        return new HrvEngine(blockSize, FS, WINDOW_OVERLAP, new WaveletBaselineFilter(FS, 0.78125), null,
+                HrvEngine.DEFAULT_PERIOD_TOLERANCE, HrvEngine.DEFAULT_PEAK_NEIGHBORHOOD, HrvEngine.DEFAULT_PEAK_WINDOW_SIZE,
+                blockSize - 2*WINDOW_OVERLAP, precision);
+    }
+
+    private static List<Integer> peaks(double[] signal, Precision precision) {
+        final List<Integer> peaks = new ArrayList<Integer>();
+        int found = engine(signal.length, precision).process(signal, 0, new PeakSink() {
+            @Override
+            public void onPeak(int index, long timestampMicros, double amplitude) {
+                peaks.add(index);
+            }
+        });
+        assertEquals(peaks.size(), found);
+        return peaks;
+    }
+
+    @Test
+    public void singlePrecisionFindsTheDoublePrecisionPeaksOfTheTestSignal() throws IOException {
+        double[] signal = loadTestSignal();
+        List<Integer> expected = peaks(signal, Precision.DOUBLE);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, peaks(signal, Precision.SINGLE));
+        // Same detection as the batch entry point
+        assertEquals(expected, PeakDetector.ProcessSignals(signal, FS, WINDOW_OVERLAP, true, null));
+    }
+
+    @Test
+    public void singlePrecisionFindsTheDoublePrecisionPeaksOfSyntheticSignals() {
+        int found = 0;
+        for (int seed = 0; seed < 12; seed++) {
+            int length = seed % 3 == 0 ? 1024 : (seed % 3 == 1 ? 1000 : 2048);
+            double[] signal = syntheticSignal(length, seed, 0.8 + seed*0.05);
+            List<Integer> expected = peaks(signal, Precision.DOUBLE);
+            assertEquals("seed " + seed, expected, peaks(signal, Precision.SINGLE));
+            found += expected.size();
+        }
+        assertTrue(found > 0);
+    }
+
+    @Test
+    public void steadyStateAllocatesNothing() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        int blockSize = 1024;
+        double[] signal = syntheticSignal(20000, 1, 1.2);
+        PeakSink sink = new PeakSink() {
+            @Override
+            public void onPeak(int index, long timestampMicros, double amplitude) {
+            }
+        };
+        for (Precision precision : Precision.values()) {
+            HrvEngine engine = new HrvEngine(blockSize, FS, 12, new WaveletBaselineFilter(FS, 0.78125), new PeakTrackingState(),
+                    HrvEngine.DEFAULT_PERIOD_TOLERANCE, HrvEngine.DEFAULT_PEAK_NEIGHBORHOOD, HrvEngine.DEFAULT_PEAK_WINDOW_SIZE,
+                    blockSize - 24, precision);
+            int hop = engine.getHopSize();
+            int positions = signal.length - blockSize;
+            // The buffers grow to their steady size with the first blocks
+            for (int i = 0; i < 200; i++)
+                engine.process(signal, (i*hop) % positions, sink);
+            // The JIT sometimes allocates a few bytes on the thread, a round without any shows
+            // that the blocks allocate nothing
+            long leastAllocated = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                long before = threads.getThreadAllocatedBytes(thread);
+                for (int i = 0; i < 100; i++)
+                    engine.process(signal, ((round*100 + i)*hop) % positions, sink);
+                leastAllocated = Math.min(leastAllocated, threads.getThreadAllocatedBytes(thread) - before);
+            }
+            assertEquals(precision + " bytes allocated by 100 blocks", 0, leastAllocated);
+        }
+    }
+}